@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.SparseBooleanArray;
+
+/**
+ * A process-wide cache of successful caller signature checks made by {@link DashClockExtension},
+ * keyed by UID, so that reconnecting hosts don't cost any package manager calls. Only positive
+ * results are cached. The cache is cleared whenever a package is added, replaced or removed,
+ * since that can change which package (and thus which signature) a UID belongs to; nothing is
+ * cached until the receiver for those broadcasts is registered.
+ *
+ * <p>Also keeps track of how long checks take with and without the cache.
+ */
+final class CallerVerificationCache {
+    // Guarded by the class monitor.
+    private static final SparseBooleanArray sVerifiedUids = new SparseBooleanArray();
+    private static boolean sReceiverRegistered;
+    private static int sHitCount;
+    private static long sHitNanos;
+    private static int sMissCount;
+    private static long sMissNanos;
+
+    private CallerVerificationCache() {
+    }
+
+    /**
+     * Returns whether the given UID was verified since packages last changed.
+     */
+    public static synchronized boolean isVerified(Context context, int uid) {
+        if (!sReceiverRegistered) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addDataScheme("package");
+            context.getApplicationContext().registerReceiver(sPackageChangeReceiver, filter);
+            sReceiverRegistered = true;
+        }
+
+        return sVerifiedUids.get(uid);
+    }
+
+    /**
+     * Records that the given UID belongs to a package with the official DashClock app signature.
+     */
+    public static synchronized void putVerified(int uid) {
+        if (sReceiverRegistered) {
+            // Without the receiver, the entry could outlive a package change.
+            sVerifiedUids.put(uid, true);
+        }
+    }
+
+    /**
+     * Records how long a caller check took, and whether the cache answered it.
+     */
+    public static synchronized void recordCheck(boolean cached, long nanos) {
+        if (cached) {
+            ++sHitCount;
+            sHitNanos += nanos;
+        } else {
+            ++sMissCount;
+            sMissNanos += nanos;
+        }
+    }
+
+    /**
+     * Returns a summary of the recorded check times, including the time the cache saved.
+     */
+    public static synchronized String getStats() {
+        long hitAverageMicros = (sHitCount > 0) ? sHitNanos / sHitCount / 1000 : 0;
+        long missAverageMicros = (sMissCount > 0) ? sMissNanos / sMissCount / 1000 : 0;
+        StringBuilder sb = new StringBuilder()
+                .append(sHitCount).append(" cached check(s) averaging ")
+                .append(hitAverageMicros).append(" us, ")
+                .append(sMissCount).append(" uncached check(s) averaging ")
+                .append(missAverageMicros).append(" us");
+        if (sHitCount > 0 && sMissCount > 0) {
+            sb.append("; about ")
+                    .append((missAverageMicros - hitAverageMicros) * sHitCount)
+                    .append(" us saved");
+        }
+        return sb.toString();
+    }
+
+    private static synchronized void clear() {
+        sVerifiedUids.clear();
+    }
+
+    private static final BroadcastReceiver sPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            clear();
+        }
+    };
+}
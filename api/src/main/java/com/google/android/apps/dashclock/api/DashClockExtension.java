@@ -34,6 +34,14 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Base class for a DashClock extension. Extensions are a way for other apps to show additional
  * status information within DashClock widgets that the user may add to the lockscreen or home
@@ -75,8 +83,34 @@ import android.util.Log;
  * to the user for customizing the extension.</li>
  * <li><code>worldReadable</code> (optional): if present and true (default is false), will allow
  * other apps besides DashClock to read data for this extension.</li>
+ * <li><code>watchContentUris</code> (optional): a whitespace-separated list of content URIs that
+ * DashClock should watch for this extension, as with {@link #addWatchContentUris(String[])}.
+ * Because DashClock doesn't need to be connected to the extension to watch these, it can unbind
+ * the extension between updates, letting its process be reclaimed. Prefer this over
+ * {@link #addWatchContentUris(String[])} for URIs that are known in advance.</li>
+ * <li><code>channelService</code> (optional, protocol version 3 or later): the name of an
+ * {@link ExtensionChannelService} in the same app through which DashClock should reach this
+ * extension. Apps that provide many extensions can use this to have DashClock bind to them all
+ * over a single connection.</li>
+ * <li><code>refreshIntervalMinutes</code> (optional): how often, in minutes, the extension
+ * should receive {@link #UPDATE_REASON_PERIODIC} updates. The default is 30 minutes, and the
+ * minimum is 15. Periodic updates may arrive somewhat early or late, so that DashClock can refresh
+ * several extensions in a single device wakeup.</li>
  * </ul>
  *
+ * <h3>Efficient updates</h3>
+ *
+ * When connected to a DashClock app that supports protocol version 3 or later,
+ * {@link #publishUpdate(ExtensionData)} only sends the fields that changed since the previous
+ * update, and {@link #publishUpdates(List)} sends several updates in a single call. Both fall
+ * back to sending full data to older DashClock apps, so extensions don't need to do anything to
+ * benefit from this. Updates identical to the previous one aren't sent at all.
+ *
+ * <p>
+ * Extensions that publish several updates in quick succession (for example, a quick placeholder
+ * followed by the real data) can call {@link #setPublishCoalescingMillis(long)} so that only the
+ * last update within a short window is sent.
+ *
  * <h3>Example</h3>
  *
  * Below is an example extension declaration in the manifest:
@@ -91,6 +125,9 @@ import android.util.Log;
  *     &lt;/intent-filter&gt;
  *     &lt;meta-data android:name="protocolVersion" android:value="2" /&gt;
  *     &lt;meta-data android:name="worldReadable" android:value="true" /&gt;
+ *     &lt;!-- Watching content URIs is optional --&gt;
+ *     &lt;meta-data android:name="watchContentUris"
+ *         android:value="content://com.example.provider/items" /&gt;
  *     &lt;meta-data android:name="description"
  *         android:value="@string/extension_description" /&gt;
  *     &lt;!-- A settings activity is optional --&gt;
@@ -158,7 +195,8 @@ public abstract class DashClockExtension extends Service {
 
     /**
      * Indicates that {@link #onUpdateData(int)} was triggered because content changed on a content
-     * URI previously registered with {@link #addWatchContentUris(String[])}.
+     * URI previously registered with {@link #addWatchContentUris(String[])}, or declared in the
+     * <code>watchContentUris</code> meta-data element.
      */
     public static final int UPDATE_REASON_CONTENT_CHANGED = 4;
 
@@ -177,6 +215,14 @@ public abstract class DashClockExtension extends Service {
      */
     public static final int UPDATE_REASON_MANUAL = 6;
 
+    /**
+     * Indicates that {@link #onUpdateData(int)} was triggered because the previously published
+     * data expired (see {@link ExtensionData#expiresAt(long)}).
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public static final int UPDATE_REASON_EXPIRED = 7;
+
     /**
      * The {@link Intent} action representing a DashClock extension. This service should
      * declare an <code>&lt;intent-filter&gt;</code> for this action in order to register with
@@ -208,9 +254,66 @@ public abstract class DashClockExtension extends Service {
      */
     private static final int PROTOCOL_VERSION_WORLD_READABILITY = 2;
 
+    /**
+     * The protocol version with which hosts accept delta and multi-record updates.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    private static final int PROTOCOL_VERSION_DELTA_UPDATES = 3;
+
     private boolean mInitialized = false;
     private boolean mIsWorldReadable = false;
     private IExtensionHost mHost;
+    private int mHostUid;
+
+    /**
+     * Guards {@link #mHostProtocolVersion} and {@link #mLastPublishedData}, and keeps updates
+     * published from different threads in order.
+     */
+    private final Object mPublishLock = new Object();
+
+    /**
+     * The protocol version reported by the current host, or 0 if it didn't report one (hosts
+     * older than protocol version 3 don't).
+     */
+    private int mHostProtocolVersion;
+
+    /**
+     * A copy of the data last sent to the current host, against which deltas are computed, or
+     * null if nothing was sent yet.
+     */
+    private ExtensionData mLastPublishedData;
+
+    /**
+     * How long to hold published updates so that later ones can supersede them, or 0 to send
+     * updates right away.
+     */
+    private long mPublishCoalescingMillis;
+
+    /**
+     * The update waiting for the end of the coalescing window, if any.
+     */
+    private ExtensionData mPendingPublishData;
+
+    /**
+     * Whether the host requested an update that wasn't answered yet. Hosts that support protocol
+     * version 3 or later keep the device awake until updates are answered, so requests answered
+     * with data identical to the previous update are acknowledged with an empty delta.
+     */
+    private boolean mUpdateAckPending;
+
+    /**
+     * The reasons for the update waiting to run on the service thread, or null if no update is
+     * waiting. Updates requested while one is waiting are merged into it. Guarded by
+     * {@link #mUpdateLock}.
+     */
+    private Set<Integer> mPendingUpdateReasons;
+    private final Object mUpdateLock = new Object();
+
+    /**
+     * The reasons for the update currently running on the service thread.
+     */
+    private volatile Set<Integer> mCurrentUpdateReasons = Collections.emptySet();
 
     private volatile Looper mServiceLooper;
     private volatile Handler mServiceHandler;
@@ -224,18 +327,47 @@ public abstract class DashClockExtension extends Service {
         super.onCreate();
         loadMetaData();
 
-        HandlerThread thread = new HandlerThread(
-                "DashClockExtension:" + getClass().getSimpleName());
-        thread.start();
+        if (useSharedWorkerThread()) {
+            mServiceLooper = SharedWorkerThreads.acquire();
+        } else {
+            HandlerThread thread = new HandlerThread(
+                    "DashClockExtension:" + getClass().getSimpleName());
+            thread.start();
+            mServiceLooper = thread.getLooper();
+        }
 
-        mServiceLooper = thread.getLooper();
         mServiceHandler = new Handler(mServiceLooper);
     }
 
+    /**
+     * Returns whether {@link #onUpdateData(int)} should run on a looper thread shared with other
+     * extensions in the same process that also opt in, rather than on a thread of its own. Apps
+     * that provide several extensions can override this to return true so that they don't keep
+     * one idle thread per extension around. Work for each extension still runs in order, but a
+     * slow {@link #onUpdateData(int)} delays updates of other extensions sharing its thread, so
+     * only opt in if this extension's updates are quick (e.g. a content provider query).
+     * Extensions that do network or other blocking I/O in {@link #onUpdateData(int)} should keep
+     * their own thread. The default implementation returns false.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    protected boolean useSharedWorkerThread() {
+        return false;
+    }
+
     @Override
     public void onDestroy() {
+        mFlushPendingPublishRunnable.run();
         mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
-        mServiceLooper.quit();
+        synchronized (mUpdateLock) {
+            mPendingUpdateReasons = null;
+        }
+
+        if (useSharedWorkerThread()) {
+            SharedWorkerThreads.release(mServiceLooper);
+        } else {
+            mServiceLooper.quit();
+        }
     }
 
     private void loadMetaData() {
@@ -260,30 +392,22 @@ public abstract class DashClockExtension extends Service {
         return mBinder;
     }
 
+    /**
+     * Writes how long caller verification took with and without its cache, for
+     * <code>adb shell dumpsys activity service</code>. Subclasses that override this should call
+     * through to the superclass implementation.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Caller verification: " + CallerVerificationCache.getStats());
+    }
+
     private IExtension.Stub mBinder = new IExtension.Stub() {
         @Override
         public void onInitialize(IExtensionHost host, boolean isReconnect)
                 throws RemoteException {
             if (!mIsWorldReadable) {
-                // If not world readable, check the signature of the [first] package with the given
-                // UID against the known-good official DashClock app signature.
-                boolean verified = false;
-                PackageManager pm = getPackageManager();
-                String[] packages = pm.getPackagesForUid(getCallingUid());
-                if (packages != null && packages.length > 0) {
-                    try {
-                        PackageInfo pi = pm.getPackageInfo(packages[0],
-                                PackageManager.GET_SIGNATURES);
-                        if (pi.signatures != null
-                                && pi.signatures.length == 1
-                                && DASHCLOCK_SIGNATURE.equals(pi.signatures[0])) {
-                            verified = true;
-                        }
-                    } catch (PackageManager.NameNotFoundException ignored) {
-                    }
-                }
-
-                if (!verified) {
+                if (!isCallerVerified(getCallingUid())) {
                     Log.e(TAG, "Caller is not official DashClock app and this "
                             + "extension is not world-readable.");
                     throw new SecurityException("Caller is not official DashClock app and this "
@@ -291,7 +415,15 @@ public abstract class DashClockExtension extends Service {
                 }
             }
 
-            mHost = host;
+            synchronized (mPublishLock) {
+                // A new host (or a host that lost its connection to the extension) knows
+                // nothing about previous updates, so start over with full updates.
+                mHost = host;
+                mHostUid = getCallingUid();
+                mHostProtocolVersion = 0;
+                mLastPublishedData = null;
+                mUpdateAckPending = false;
+            }
 
             if (!mInitialized) {
                 DashClockExtension.this.onInitialize(isReconnect);
@@ -305,16 +437,101 @@ public abstract class DashClockExtension extends Service {
                 return;
             }
 
+            synchronized (mPublishLock) {
+                mUpdateAckPending = true;
+            }
+
+            synchronized (mUpdateLock) {
+                if (mPendingUpdateReasons != null) {
+                    // An update is already waiting to run; it will cover this one too.
+                    mPendingUpdateReasons.add(reason);
+                    return;
+                }
+
+                mPendingUpdateReasons = new LinkedHashSet<Integer>();
+                mPendingUpdateReasons.add(reason);
+            }
+
             // Do this in a separate thread
-            mServiceHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    DashClockExtension.this.onUpdateData(reason);
+            mServiceHandler.post(mUpdateRunnable);
+        }
+
+        @Override
+        public void onHostProtocolVersion(int protocolVersion) throws RemoteException {
+            synchronized (mPublishLock) {
+                if (mHost == null || getCallingUid() != mHostUid) {
+                    // Only trust the host that went through onInitialize.
+                    return;
                 }
-            });
+
+                mHostProtocolVersion = protocolVersion;
+            }
+        }
+    };
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Set<Integer> reasons;
+            synchronized (mUpdateLock) {
+                reasons = mPendingUpdateReasons;
+                mPendingUpdateReasons = null;
+            }
+
+            if (reasons == null) {
+                return;
+            }
+
+            mCurrentUpdateReasons = Collections.unmodifiableSet(reasons);
+            try {
+                DashClockExtension.this.onUpdateData(reasons.iterator().next());
+            } finally {
+                mCurrentUpdateReasons = Collections.emptySet();
+            }
         }
     };
 
+    /**
+     * Returns whether the given UID belongs to the official DashClock app, caching successful
+     * checks since hosts reconnect often (e.g. after crashes).
+     */
+    private boolean isCallerVerified(int uid) {
+        long startNanos = System.nanoTime();
+        boolean cached = CallerVerificationCache.isVerified(this, uid);
+        boolean verified = cached || verifyCallerSignature(uid);
+        if (verified && !cached) {
+            CallerVerificationCache.putVerified(uid);
+        }
+
+        CallerVerificationCache.recordCheck(cached, System.nanoTime() - startNanos);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Verified caller UID " + uid + ": "
+                    + CallerVerificationCache.getStats() + ".");
+        }
+        return verified;
+    }
+
+    /**
+     * Checks the signature of the [first] package with the given UID against the known-good
+     * official DashClock app signature.
+     */
+    private boolean verifyCallerSignature(int uid) {
+        PackageManager pm = getPackageManager();
+        String[] packages = pm.getPackagesForUid(uid);
+        if (packages != null && packages.length > 0) {
+            try {
+                PackageInfo pi = pm.getPackageInfo(packages[0], PackageManager.GET_SIGNATURES);
+                if (pi.signatures != null
+                        && pi.signatures.length == 1
+                        && DASHCLOCK_SIGNATURE.equals(pi.signatures[0])) {
+                    return true;
+                }
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        }
+        return false;
+    }
+
     /**
      * Called when a connection with the main DashClock app has been established or re-established
      * after a previous one was lost. In this latter case, the parameter <code>isReconnect</code>
@@ -335,11 +552,27 @@ public abstract class DashClockExtension extends Service {
      * {@link #publishUpdate(ExtensionData)} with <code>null</code> data. This method is called
      * on a background thread.
      *
+     * <p>
+     * Updates requested while a previous request is still waiting to be handled are merged into
+     * it, so this method is called once for all of them. The <code>reason</code> parameter is the
+     * reason for the first of these requests; call {@link #getUpdateReasons()} to get all of them.
+     *
      * @param reason The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
      *               constants for more details.
      */
     protected abstract void onUpdateData(int reason);
 
+    /**
+     * Returns the reasons for all update requests handled by the current call to
+     * {@link #onUpdateData(int)}, in the order they were requested. Returns an empty set when
+     * called outside of {@link #onUpdateData(int)}.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    protected final Set<Integer> getUpdateReasons() {
+        return mCurrentUpdateReasons;
+    }
+
     /**
      * Notifies the main DashClock app that new data is available for the extension and should
      * potentially be shown to the user. Note that this call does not necessarily need to be made
@@ -351,13 +584,180 @@ public abstract class DashClockExtension extends Service {
      *             the extension from view).
      */
     protected final void publishUpdate(ExtensionData data) {
+        if (data == null) {
+            data = new ExtensionData();
+        }
+
+        synchronized (mPublishLock) {
+            if (mPublishCoalescingMillis > 0) {
+                // Copy the data, since the caller may keep modifying it.
+                if (mPendingPublishData == null) {
+                    mServiceHandler.postDelayed(mFlushPendingPublishRunnable,
+                            mPublishCoalescingMillis);
+                }
+                mPendingPublishData = data.delta(ExtensionData.FIELD_ALL);
+                return;
+            }
+
+            sendUpdateLocked(data);
+        }
+    }
+
+    /**
+     * Sets how long {@link #publishUpdate(ExtensionData)} holds updates before sending them, so
+     * that only the last of several updates published within that time is sent. Held updates are
+     * sent at most <code>millis</code> after the first one was published, and no later than
+     * {@link #onDestroy()}. By default, updates are sent right away.
+     *
+     * @param millis How long to hold updates, or 0 to send them right away.
+     * @since Protocol Version 3 (API r3.x)
+     */
+    protected final void setPublishCoalescingMillis(long millis) {
+        synchronized (mPublishLock) {
+            mPublishCoalescingMillis = Math.max(0, millis);
+            if (mPublishCoalescingMillis == 0) {
+                mFlushPendingPublishRunnable.run();
+            }
+        }
+    }
+
+    private final Runnable mFlushPendingPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPublishLock) {
+                mServiceHandler.removeCallbacks(this);
+                if (mPendingPublishData != null) {
+                    ExtensionData data = mPendingPublishData;
+                    mPendingPublishData = null;
+                    sendUpdateLocked(data);
+                }
+            }
+        }
+    };
+
+    /**
+     * Sends the given update to the host, as a delta if possible, unless it's identical to the
+     * previous update.
+     */
+    private void sendUpdateLocked(ExtensionData data) {
+        int changedFields = getChangedFieldsLocked(data);
+        if (changedFields == 0) {
+            acknowledgeUpdateLocked();
+            return;
+        }
+
         try {
-            mHost.publishUpdate(data);
+            if (changedFields == ExtensionData.FIELD_ALL) {
+                mHost.publishUpdate(data);
+            } else {
+                mHost.publishUpdateDelta(data.delta(changedFields), changedFields);
+            }
+            mLastPublishedData = data.delta(ExtensionData.FIELD_ALL);
+            mUpdateAckPending = false;
         } catch (RemoteException e) {
             Log.e(TAG, "Couldn't publish updated extension data.", e);
         }
     }
 
+    /**
+     * Notifies the main DashClock app of several consecutive updates at once, as if
+     * {@link #publishUpdate(ExtensionData)} were called with each of them in order, but in a
+     * single call to the main DashClock app. DashClock apps older than protocol version 3 only
+     * receive the last update, which supersedes the others. Updates identical to the one before
+     * them are skipped, and any update held by {@link #setPublishCoalescingMillis(long)} is
+     * dropped, since these updates supersede it.
+     *
+     * @param dataList The data to show, in order. <code>null</code> items clear existing data.
+     * @since Protocol Version 3 (API r3.x)
+     */
+    protected final void publishUpdates(List<ExtensionData> dataList) {
+        if (dataList == null || dataList.isEmpty()) {
+            return;
+        }
+
+        synchronized (mPublishLock) {
+            mPendingPublishData = null;
+            mServiceHandler.removeCallbacks(mFlushPendingPublishRunnable);
+
+            if (mHostProtocolVersion < PROTOCOL_VERSION_DELTA_UPDATES) {
+                ExtensionData data = dataList.get(dataList.size() - 1);
+                sendUpdateLocked((data != null) ? data : new ExtensionData());
+                return;
+            }
+
+            List<ExtensionData> deltas = new ArrayList<ExtensionData>(dataList.size());
+            List<Integer> changedFieldsList = new ArrayList<Integer>(dataList.size());
+            ExtensionData last = mLastPublishedData;
+            for (ExtensionData data : dataList) {
+                if (data == null) {
+                    data = new ExtensionData();
+                }
+
+                int changedFields = (last != null)
+                        ? ExtensionData.getChangedFields(last, data)
+                        : ExtensionData.FIELD_ALL;
+                if (changedFields == 0) {
+                    continue;
+                }
+
+                deltas.add(data.delta(changedFields));
+                changedFieldsList.add(changedFields);
+                last = data;
+            }
+
+            if (deltas.isEmpty()) {
+                acknowledgeUpdateLocked();
+                return;
+            }
+
+            int[] changedFields = new int[changedFieldsList.size()];
+            for (int i = 0; i < changedFields.length; i++) {
+                changedFields[i] = changedFieldsList.get(i);
+            }
+
+            try {
+                mHost.publishUpdates(deltas, changedFields);
+                mLastPublishedData = last.delta(ExtensionData.FIELD_ALL);
+                mUpdateAckPending = false;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+            }
+        }
+    }
+
+    /**
+     * Lets the host know that a pending update request was answered, even though the data didn't
+     * change, by sending it an empty delta.
+     */
+    private void acknowledgeUpdateLocked() {
+        if (!mUpdateAckPending || mHostProtocolVersion < PROTOCOL_VERSION_DELTA_UPDATES) {
+            return;
+        }
+
+        try {
+            mHost.publishUpdateDelta(new ExtensionData(), 0);
+            mUpdateAckPending = false;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Couldn't acknowledge update.", e);
+        }
+    }
+
+    /**
+     * Returns the fields of the given data that need to be sent to the host: none if it's
+     * identical to the previous update, otherwise all of them unless the host accepts deltas.
+     */
+    private int getChangedFieldsLocked(ExtensionData data) {
+        if (mLastPublishedData == null) {
+            return ExtensionData.FIELD_ALL;
+        }
+
+        int changedFields = ExtensionData.getChangedFields(mLastPublishedData, data);
+        if (changedFields != 0 && mHostProtocolVersion < PROTOCOL_VERSION_DELTA_UPDATES) {
+            return ExtensionData.FIELD_ALL;
+        }
+        return changedFields;
+    }
+
     /**
      * Requests that the main DashClock app watch the given content URIs (using
      * {@link android.content.ContentResolver#registerContentObserver(android.net.Uri, boolean,
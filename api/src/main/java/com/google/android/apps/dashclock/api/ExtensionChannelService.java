@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import com.google.android.apps.dashclock.api.internal.IExtensionChannels;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A service through which DashClock reaches several extensions in the same app over a single
+ * binding, rather than binding to each extension separately. Apps that provide many extensions
+ * can declare this service once in their manifest and point their extensions at it with the
+ * <code>channelService</code> meta-data element:
+ *
+ * <pre class="prettyprint">
+ * &lt;service android:name="com.google.android.apps.dashclock.api.ExtensionChannelService"
+ *     android:permission="com.google.android.apps.dashclock.permission.READ_EXTENSION_DATA"
+ *     android:exported="true" /&gt;
+ *
+ * &lt;service android:name=".ExampleExtension" ...&gt;
+ *     ...
+ *     &lt;meta-data android:name="protocolVersion" android:value="3" /&gt;
+ *     &lt;meta-data android:name="channelService"
+ *         android:value="com.google.android.apps.dashclock.api.ExtensionChannelService" /&gt;
+ * &lt;/service&gt;
+ * </pre>
+ *
+ * Extensions are otherwise declared and implemented as usual, and DashClock apps older than
+ * protocol version 3 keep binding to them directly. This service binds to the extensions within
+ * the app's own process on DashClock's behalf, and hands DashClock their binders.
+ *
+ * @since Protocol Version 3 (API r3.x)
+ */
+public class ExtensionChannelService extends Service {
+    private static final String TAG = "ExtensionChannelService";
+
+    /**
+     * How long to wait for an extension in this process to be created and bound.
+     */
+    private static final long CHANNEL_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Connections to the extensions DashClock currently uses, keyed by class name. Guarded by the
+     * map's monitor.
+     */
+    private final Map<String, ChannelConnection> mChannels
+            = new HashMap<String, ChannelConnection>();
+
+    private boolean mDestroyed = false;
+
+    @Override
+    public final IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (mChannels) {
+            mDestroyed = true;
+            for (ChannelConnection connection : mChannels.values()) {
+                unbindService(connection);
+            }
+            mChannels.clear();
+        }
+        super.onDestroy();
+    }
+
+    private final IExtensionChannels.Stub mBinder = new IExtensionChannels.Stub() {
+        @Override
+        public IBinder getChannel(String extensionClassName) throws RemoteException {
+            if (!isChannel(extensionClassName)) {
+                Log.w(TAG, extensionClassName + " isn't an extension served by this service.");
+                return null;
+            }
+
+            ChannelConnection connection;
+            synchronized (mChannels) {
+                if (mDestroyed) {
+                    return null;
+                }
+
+                connection = mChannels.get(extensionClassName);
+                if (connection == null) {
+                    connection = new ChannelConnection();
+                    if (!bindService(new Intent().setComponent(new ComponentName(
+                            ExtensionChannelService.this, extensionClassName)),
+                            connection, BIND_AUTO_CREATE)) {
+                        Log.e(TAG, "Couldn't bind to extension " + extensionClassName);
+                        return null;
+                    }
+                    mChannels.put(extensionClassName, connection);
+                }
+            }
+
+            // This is called on a binder thread, while the connection is established on the main
+            // thread.
+            return connection.awaitBinder(CHANNEL_CONNECT_TIMEOUT_MILLIS);
+        }
+
+        @Override
+        public void releaseChannel(String extensionClassName) throws RemoteException {
+            synchronized (mChannels) {
+                ChannelConnection connection = mChannels.remove(extensionClassName);
+                if (connection != null) {
+                    // Lets the extension be destroyed once DashClock no longer uses it.
+                    unbindService(connection);
+                }
+            }
+        }
+    };
+
+    /**
+     * Returns whether the given class is an extension in this app that declares this service as
+     * its channel service, so that callers can't use this service to reach other services.
+     */
+    private boolean isChannel(String extensionClassName) {
+        if (extensionClassName == null) {
+            return false;
+        }
+
+        try {
+            ServiceInfo si = getPackageManager().getServiceInfo(
+                    new ComponentName(this, extensionClassName), PackageManager.GET_META_DATA);
+            if (si.metaData == null) {
+                return false;
+            }
+
+            String channelService = si.metaData.getString("channelService");
+            if (channelService == null) {
+                return false;
+            }
+
+            ComponentName cn = ComponentName.unflattenFromString(
+                    getPackageName() + "/" + channelService);
+            return cn != null && getClass().getName().equals(cn.getClassName());
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static class ChannelConnection implements ServiceConnection {
+        private final CountDownLatch mConnected = new CountDownLatch(1);
+        private volatile IBinder mBinder;
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mBinder = service;
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mBinder = null;
+        }
+
+        IBinder awaitBinder(long timeoutMillis) {
+            try {
+                if (!mConnected.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out waiting for extension to connect.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mBinder;
+        }
+    }
+}
@@ -72,7 +72,7 @@ public class ExtensionData implements Parcelable {
      * old versions of the protocol (and thus old versions of this class), we need a versioning
      * system for the parcels sent between the core app and its extensions.
      */
-    public static final int PARCELABLE_VERSION = 2;
+    public static final int PARCELABLE_VERSION = 3;
 
     private static final String KEY_VISIBLE = "visible";
     private static final String KEY_ICON = "icon";
@@ -82,6 +82,7 @@ public class ExtensionData implements Parcelable {
     private static final String KEY_EXPANDED_BODY = "body";
     private static final String KEY_CLICK_INTENT = "click_intent";
     private static final String KEY_CONTENT_DESCRIPTION = "content_description";
+    private static final String KEY_EXPIRES_AT = "expires_at";
 
     /**
      * The maximum length for {@link #status(String)}. Enforced by {@link #clean()}.
@@ -104,6 +105,38 @@ public class ExtensionData implements Parcelable {
     public static final int MAX_CONTENT_DESCRIPTION_LENGTH = 32 +
             MAX_STATUS_LENGTH + MAX_EXPANDED_TITLE_LENGTH + MAX_EXPANDED_BODY_LENGTH;
 
+    /**
+     * Field mask bits identifying the fields of an {@link ExtensionData} object, as used by
+     * {@link #getChangedFields(ExtensionData, ExtensionData)}, {@link #delta(int)} and
+     * {@link #applyDelta(ExtensionData, int)}.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public static final int FIELD_VISIBLE = 1;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_ICON = 1 << 1;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_ICON_URI = 1 << 2;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_STATUS = 1 << 3;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_EXPANDED_TITLE = 1 << 4;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_EXPANDED_BODY = 1 << 5;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_CLICK_INTENT = 1 << 6;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_CONTENT_DESCRIPTION = 1 << 7;
+    /** @since Protocol Version 3 (API r3.x) */
+    public static final int FIELD_EXPIRES_AT = 1 << 8;
+
+    /**
+     * A field mask covering all fields.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public static final int FIELD_ALL = (1 << 9) - 1;
+
     private boolean mVisible = false;
     private int mIcon = 0;
     private Uri mIconUri = null;
@@ -112,6 +145,7 @@ public class ExtensionData implements Parcelable {
     private String mExpandedBody = null;
     private Intent mClickIntent = null;
     private String mContentDescription = null;
+    private long mExpiresAt = 0;
 
     public ExtensionData() {
     }
@@ -275,6 +309,48 @@ public class ExtensionData implements Parcelable {
         return this;
     }
 
+    /**
+     * Returns the time at which this data becomes stale, in {@link System#currentTimeMillis()}
+     * time, or 0 if it never does. Default 0.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public long expiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * Sets the time at which this data becomes stale, in {@link System#currentTimeMillis()}
+     * time, or 0 if it never does. Use this for data that's only meaningful for a limited time,
+     * such as "in 5 minutes" or a weather reading. Once the data expires, DashClock stops
+     * showing it and requests an update with {@link DashClockExtension#UPDATE_REASON_EXPIRED},
+     * so there's no need to schedule frequent updates just to keep the data fresh. Default 0.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public ExtensionData expiresAt(long expiresAt) {
+        mExpiresAt = Math.max(0, expiresAt);
+        return this;
+    }
+
+    /**
+     * Sets this data to expire the given amount of time from now. See {@link #expiresAt(long)}.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public ExtensionData timeToLive(long millis) {
+        return expiresAt(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Returns whether this data has expired. See {@link #expiresAt(long)}.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public boolean isExpired() {
+        return mExpiresAt > 0 && System.currentTimeMillis() >= mExpiresAt;
+    }
+
     /**
      * Serializes the contents of this object to JSON.
      */
@@ -288,6 +364,7 @@ public class ExtensionData implements Parcelable {
         data.put(KEY_EXPANDED_BODY, mExpandedBody);
         data.put(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
         data.put(KEY_CONTENT_DESCRIPTION, mContentDescription);
+        data.put(KEY_EXPIRES_AT, mExpiresAt);
         return data;
     }
 
@@ -308,6 +385,7 @@ public class ExtensionData implements Parcelable {
         } catch (URISyntaxException ignored) {
         }
         this.mContentDescription = data.optString(KEY_CONTENT_DESCRIPTION);
+        this.mExpiresAt = data.optLong(KEY_EXPIRES_AT);
     }
 
     /**
@@ -323,6 +401,7 @@ public class ExtensionData implements Parcelable {
         data.putString(KEY_EXPANDED_BODY, mExpandedBody);
         data.putString(KEY_CLICK_INTENT, (mClickIntent == null) ? null : mClickIntent.toUri(0));
         data.putString(KEY_CONTENT_DESCRIPTION, mContentDescription);
+        data.putLong(KEY_EXPIRES_AT, mExpiresAt);
         return data;
     }
 
@@ -343,6 +422,7 @@ public class ExtensionData implements Parcelable {
         } catch (URISyntaxException ignored) {
         }
         this.mContentDescription = src.getString(KEY_CONTENT_DESCRIPTION);
+        this.mExpiresAt = src.getLong(KEY_EXPIRES_AT);
     }
 
     /**
@@ -391,6 +471,9 @@ public class ExtensionData implements Parcelable {
             String iconUriString = in.readString();
             this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
         }
+        if (parcelableVersion >= 3) {
+            this.mExpiresAt = in.readLong();
+        }
         // Only advance the data position if the parcelable version is >= 2. In v1 of the
         // parcelable, there was an awful bug where the parcelableSize was complete nonsense.
         if (parcelableVersion >= 2) {
@@ -420,6 +503,8 @@ public class ExtensionData implements Parcelable {
         // Version 2 below
         parcel.writeString(TextUtils.isEmpty(mContentDescription) ? "" : mContentDescription);
         parcel.writeString(mIconUri == null ? "" : mIconUri.toString());
+        // Version 3 below
+        parcel.writeLong(mExpiresAt);
         // Go back and write the size
         int parcelableSize = parcel.dataPosition() - startPosition;
         parcel.setDataPosition(sizePosition);
@@ -448,7 +533,8 @@ public class ExtensionData implements Parcelable {
                     && TextUtils.equals(other.mExpandedTitle, mExpandedTitle)
                     && TextUtils.equals(other.mExpandedBody, mExpandedBody)
                     && objectEquals(other.mClickIntent, mClickIntent)
-                    && TextUtils.equals(other.mContentDescription, mContentDescription);
+                    && TextUtils.equals(other.mContentDescription, mContentDescription)
+                    && other.mExpiresAt == mExpiresAt;
 
         } catch (ClassCastException e) {
             return false;
@@ -463,6 +549,18 @@ public class ExtensionData implements Parcelable {
         }
     }
 
+    /**
+     * Compares intents by their URI representation, which is what ends up in the parcel; intents
+     * don't implement {@link Object#equals(Object)}.
+     */
+    private static boolean intentEquals(Intent x, Intent y) {
+        if (x == null || y == null) {
+            return x == y;
+        } else {
+            return x == y || x.toUri(0).equals(y.toUri(0));
+        }
+    }
+
     /**
      * Returns true if the two provided data objects are equal (or both null).
      */
@@ -474,6 +572,85 @@ public class ExtensionData implements Parcelable {
         }
     }
 
+    /**
+     * Returns a mask of the {@link #FIELD_ALL FIELD_*} bits for the fields that differ between the
+     * two provided data objects. A null object is treated as an empty one.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public static int getChangedFields(ExtensionData from, ExtensionData to) {
+        if (from == null) {
+            from = new ExtensionData();
+        }
+        if (to == null) {
+            to = new ExtensionData();
+        }
+
+        int changed = 0;
+        if (from.mVisible != to.mVisible) {
+            changed |= FIELD_VISIBLE;
+        }
+        if (from.mIcon != to.mIcon) {
+            changed |= FIELD_ICON;
+        }
+        if (!objectEquals(from.mIconUri, to.mIconUri)) {
+            changed |= FIELD_ICON_URI;
+        }
+        if (!TextUtils.equals(from.mStatus, to.mStatus)) {
+            changed |= FIELD_STATUS;
+        }
+        if (!TextUtils.equals(from.mExpandedTitle, to.mExpandedTitle)) {
+            changed |= FIELD_EXPANDED_TITLE;
+        }
+        if (!TextUtils.equals(from.mExpandedBody, to.mExpandedBody)) {
+            changed |= FIELD_EXPANDED_BODY;
+        }
+        if (!intentEquals(from.mClickIntent, to.mClickIntent)) {
+            changed |= FIELD_CLICK_INTENT;
+        }
+        if (!TextUtils.equals(from.mContentDescription, to.mContentDescription)) {
+            changed |= FIELD_CONTENT_DESCRIPTION;
+        }
+        if (from.mExpiresAt != to.mExpiresAt) {
+            changed |= FIELD_EXPIRES_AT;
+        }
+        return changed;
+    }
+
+    /**
+     * Returns a copy of this object containing only the fields in the given mask; all other
+     * fields are left empty so that they cost next to nothing to parcel.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public ExtensionData delta(int fields) {
+        return new ExtensionData().applyDelta(this, fields);
+    }
+
+    /**
+     * Returns a copy of this object with the fields in the given mask replaced by those of the
+     * given delta.
+     *
+     * @since Protocol Version 3 (API r3.x)
+     */
+    public ExtensionData applyDelta(ExtensionData delta, int fields) {
+        ExtensionData result = new ExtensionData();
+        result.mVisible = ((fields & FIELD_VISIBLE) != 0) ? delta.mVisible : mVisible;
+        result.mIcon = ((fields & FIELD_ICON) != 0) ? delta.mIcon : mIcon;
+        result.mIconUri = ((fields & FIELD_ICON_URI) != 0) ? delta.mIconUri : mIconUri;
+        result.mStatus = ((fields & FIELD_STATUS) != 0) ? delta.mStatus : mStatus;
+        result.mExpandedTitle = ((fields & FIELD_EXPANDED_TITLE) != 0)
+                ? delta.mExpandedTitle : mExpandedTitle;
+        result.mExpandedBody = ((fields & FIELD_EXPANDED_BODY) != 0)
+                ? delta.mExpandedBody : mExpandedBody;
+        result.mClickIntent = ((fields & FIELD_CLICK_INTENT) != 0)
+                ? delta.mClickIntent : mClickIntent;
+        result.mContentDescription = ((fields & FIELD_CONTENT_DESCRIPTION) != 0)
+                ? delta.mContentDescription : mContentDescription;
+        result.mExpiresAt = ((fields & FIELD_EXPIRES_AT) != 0) ? delta.mExpiresAt : mExpiresAt;
+        return result;
+    }
+
     @Override
     public int hashCode() {
         throw new UnsupportedOperationException();
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock.api;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * A small, process-wide pool of looper threads shared by the {@link DashClockExtension}s running
+ * in a process (see {@link DashClockExtension#useSharedWorkerThread()}). Each extension is
+ * assigned the thread with the fewest extensions, and keeps it until it's destroyed, so each
+ * extension's work still runs serially and in order. The threads quit once no extension uses
+ * them anymore.
+ */
+final class SharedWorkerThreads {
+    private static final int THREAD_COUNT = 2;
+
+    // Guarded by the class monitor.
+    private static final HandlerThread[] sThreads = new HandlerThread[THREAD_COUNT];
+    private static final int[] sUserCounts = new int[THREAD_COUNT];
+
+    private SharedWorkerThreads() {
+    }
+
+    /**
+     * Returns the looper of the least used shared thread, starting it if needed. Each call must
+     * be balanced by a call to {@link #release(Looper)}.
+     */
+    public static synchronized Looper acquire() {
+        int index = 0;
+        for (int i = 1; i < THREAD_COUNT; i++) {
+            if (sUserCounts[i] < sUserCounts[index]) {
+                index = i;
+            }
+        }
+
+        if (sThreads[index] == null) {
+            sThreads[index] = new HandlerThread("DashClockExtension:shared-" + index);
+            sThreads[index].start();
+        }
+
+        ++sUserCounts[index];
+        return sThreads[index].getLooper();
+    }
+
+    /**
+     * Releases a looper obtained from {@link #acquire()}, quitting its thread if no extension
+     * uses it anymore.
+     */
+    public static synchronized void release(Looper looper) {
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            if (sThreads[i] != null && sThreads[i].getLooper() == looper) {
+                if (--sUserCounts[i] == 0) {
+                    sThreads[i].quit();
+                    sThreads[i] = null;
+                }
+                return;
+            }
+        }
+    }
+}
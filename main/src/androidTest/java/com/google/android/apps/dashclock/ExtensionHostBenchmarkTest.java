@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import com.google.android.apps.dashclock.api.internal.IExtension;
+import com.google.android.apps.dashclock.api.internal.IExtensionHost;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end update latency through {@link ExtensionHost#execute}, from requesting an
+ * update to the extension receiving it, with 1, 10 and 50 extensions. The extensions are
+ * in-process stubs handed to the host in place of real bindings. Latencies are logged rather
+ * than asserted on, since they depend on the device; the test only checks that every update
+ * arrives, in order.
+ */
+public class ExtensionHostBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ExtensionHostBenchmark";
+
+    private static final int UPDATES_PER_EXTENSION = 20;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private StubContext mContext;
+    private ExtensionHost mHost;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new StubContext(getInstrumentation().getTargetContext());
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mHost = new ExtensionHost(mContext);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mHost.destroy();
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testUpdateLatencyWith1Extension() throws Exception {
+        runBenchmark(1);
+    }
+
+    public void testUpdateLatencyWith10Extensions() throws Exception {
+        runBenchmark(10);
+    }
+
+    public void testUpdateLatencyWith50Extensions() throws Exception {
+        runBenchmark(50);
+    }
+
+    private void runBenchmark(int extensionCount) throws Exception {
+        final CountDownLatch done = new CountDownLatch(extensionCount * UPDATES_PER_EXTENSION);
+        final List<StubExtension> extensions = new ArrayList<StubExtension>();
+        for (int i = 0; i < extensionCount; i++) {
+            StubExtension extension = new StubExtension(new ComponentName(
+                    mContext.getPackageName(), "benchmark.StubExtension" + i), done);
+            mContext.addExtension(extension);
+            extensions.add(extension);
+        }
+
+        // Requests are made on the main thread, as the host expects; interleave them across
+        // extensions the way a full refresh does.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int update = 0; update < UPDATES_PER_EXTENSION; update++) {
+                    for (StubExtension extension : extensions) {
+                        extension.requestUpdate(mHost, update);
+                    }
+                }
+            }
+        });
+
+        assertTrue("Not all updates arrived", done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        long totalMicros = 0;
+        long maxMicros = 0;
+        for (StubExtension extension : extensions) {
+            assertEquals(UPDATES_PER_EXTENSION, extension.received.size());
+            for (int update = 0; update < UPDATES_PER_EXTENSION; update++) {
+                assertEquals("Updates arrived out of order for " + extension.componentName,
+                        update, (int) extension.received.get(update));
+                long micros = extension.getLatencyMicros(update);
+                totalMicros += micros;
+                maxMicros = Math.max(maxMicros, micros);
+            }
+        }
+
+        int updateCount = extensionCount * UPDATES_PER_EXTENSION;
+        Log.i(TAG, extensionCount + " extension(s): " + updateCount + " update(s), latency "
+                + (totalMicros / updateCount) + " us on average, " + maxMicros + " us at most.");
+    }
+
+    /**
+     * Hands stub extension binders to the host in place of binding to real services.
+     */
+    private static class StubContext extends ContextWrapper {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private final Map<ComponentName, StubExtension> mExtensions
+                = new HashMap<ComponentName, StubExtension>();
+
+        StubContext(Context base) {
+            super(base);
+        }
+
+        synchronized void addExtension(StubExtension extension) {
+            mExtensions.put(extension.componentName, extension);
+        }
+
+        @Override
+        public boolean bindService(Intent service, final ServiceConnection conn, int flags) {
+            final StubExtension extension;
+            synchronized (this) {
+                extension = mExtensions.get(service.getComponent());
+            }
+
+            if (extension == null) {
+                // Don't bind to the device's real extensions.
+                return false;
+            }
+
+            // Connections are established asynchronously, on the main thread.
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    conn.onServiceConnected(extension.componentName, extension);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection conn) {
+        }
+    }
+
+    private static class StubExtension extends IExtension.Stub {
+        final ComponentName componentName;
+        final List<Integer> received = new ArrayList<Integer>();
+        private final long[] mRequestedNanos = new long[UPDATES_PER_EXTENSION];
+        private final long[] mReceivedNanos = new long[UPDATES_PER_EXTENSION];
+        private final CountDownLatch mDone;
+
+        StubExtension(ComponentName componentName, CountDownLatch done) {
+            this.componentName = componentName;
+            mDone = done;
+        }
+
+        void requestUpdate(ExtensionHost host, final int update) {
+            synchronized (this) {
+                mRequestedNanos[update] = System.nanoTime();
+            }
+            host.execute(componentName, new ExtensionHost.Operation() {
+                @Override
+                public void run(IExtension extension) throws RemoteException {
+                    extension.onUpdate(update);
+                }
+            }, 0, null);
+        }
+
+        synchronized long getLatencyMicros(int update) {
+            return (mReceivedNanos[update] - mRequestedNanos[update]) / 1000;
+        }
+
+        @Override
+        public void onInitialize(IExtensionHost host, boolean isReconnect) {
+        }
+
+        @Override
+        public void onUpdate(int update) {
+            synchronized (this) {
+                mReceivedNanos[update] = System.nanoTime();
+                received.add(update);
+            }
+            mDone.countDown();
+        }
+
+        @Override
+        public void onHostProtocolVersion(int protocolVersion) {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.os.SystemClock;
+
+/**
+ * Picks a collapse window for a stream of events based on how often they've been arriving. The
+ * interval between events is tracked as an exponentially weighted moving average; while events
+ * arrive faster than the minimum window, the window widens in proportion (up to a maximum), and
+ * once they slow down it shrinks back to the minimum.
+ *
+ * <p>All methods are thread-safe.
+ */
+class AdaptiveCollapseWindow {
+    /**
+     * Weight of the most recent interval in the moving average.
+     */
+    private static final float SMOOTHING_FACTOR = 0.3f;
+
+    private final long mMinWindowMillis;
+    private final long mMaxWindowMillis;
+
+    // All fields below are guarded by this object's monitor.
+    private long mLastEventUptime = -1;
+    private float mAverageIntervalMillis = -1;
+    private long mWindowMillis;
+    private int mEventCount;
+
+    public AdaptiveCollapseWindow(long minWindowMillis, long maxWindowMillis) {
+        mMinWindowMillis = minWindowMillis;
+        mMaxWindowMillis = Math.max(minWindowMillis, maxWindowMillis);
+        mWindowMillis = minWindowMillis;
+    }
+
+    /**
+     * Records an event and returns the collapse window to use for it.
+     */
+    public synchronized long onEvent() {
+        long now = SystemClock.uptimeMillis();
+        ++mEventCount;
+        if (mLastEventUptime >= 0) {
+            long interval = now - mLastEventUptime;
+            mAverageIntervalMillis = (mAverageIntervalMillis < 0)
+                    ? interval
+                    : SMOOTHING_FACTOR * interval
+                            + (1 - SMOOTHING_FACTOR) * mAverageIntervalMillis;
+        }
+        mLastEventUptime = now;
+
+        if (mAverageIntervalMillis < 0 || mAverageIntervalMillis >= mMinWindowMillis) {
+            mWindowMillis = mMinWindowMillis;
+        } else {
+            // Widen the window by the factor by which events outpace the minimum window.
+            mWindowMillis = Math.min(mMaxWindowMillis, (long) (mMinWindowMillis
+                    * (mMinWindowMillis / Math.max(1f, mAverageIntervalMillis))));
+        }
+        return mWindowMillis;
+    }
+
+    /**
+     * Returns the most recently chosen collapse window.
+     */
+    public synchronized long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Returns the moving average of the interval between events, or -1 if fewer than two events
+     * have been recorded.
+     */
+    public synchronized float getAverageIntervalMillis() {
+        return mAverageIntervalMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window=" + mWindowMillis + "ms"
+                + ", avgInterval=" + Math.round(mAverageIntervalMillis) + "ms"
+                + ", events=" + mEventCount;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collapses bursts of events into a single run of an action on a {@link Handler}'s thread. The
+ * action runs once no new event has been scheduled for the quiet period, but never later than the
+ * maximum wait after the first event of the burst, so a steady stream of events can't postpone it
+ * indefinitely.
+ *
+ * <p>{@link #schedule()} and {@link #cancel()} may be called from any thread.
+ */
+class CoalescingScheduler {
+    private final Handler mHandler;
+    private final Runnable mAction;
+
+    // All fields below are guarded by this object's monitor.
+    private long mQuietMillis;
+    private long mMaxWaitMillis;
+    private int mPendingEvents;
+    private long mFirstEventUptime;
+    private long mScheduledUptime;
+
+    private long mTotalEvents;
+    private int mFlushCount;
+    private int mMaxWaitFlushCount;
+    private int mLastFlushEvents;
+    private int mMaxFlushEvents;
+
+    /**
+     * @param handler       The handler whose thread runs the action.
+     * @param quietMillis   How long to wait after the most recent event before running the
+     *                      action.
+     * @param maxWaitMillis The maximum time between the first event of a burst and running the
+     *                      action. Raised to {@code quietMillis} if smaller.
+     * @param action        The action to run.
+     */
+    public CoalescingScheduler(Handler handler, long quietMillis, long maxWaitMillis,
+            Runnable action) {
+        mHandler = handler;
+        mAction = action;
+        mQuietMillis = quietMillis;
+        mMaxWaitMillis = Math.max(quietMillis, maxWaitMillis);
+    }
+
+    /**
+     * Changes the quiet period and maximum wait, starting with the next call to
+     * {@link #schedule()}.
+     */
+    public synchronized void setWindow(long quietMillis, long maxWaitMillis) {
+        mQuietMillis = quietMillis;
+        mMaxWaitMillis = Math.max(quietMillis, maxWaitMillis);
+    }
+
+    /**
+     * Records an event, (re)scheduling the action within the quiet period and maximum wait bounds.
+     */
+    public synchronized void schedule() {
+        long now = SystemClock.uptimeMillis();
+        if (mPendingEvents == 0) {
+            mFirstEventUptime = now;
+        }
+        ++mPendingEvents;
+        ++mTotalEvents;
+
+        long runAt = Math.min(now + mQuietMillis, mFirstEventUptime + mMaxWaitMillis);
+        if (mPendingEvents == 1 || runAt != mScheduledUptime) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postAtTime(mFlushRunnable, runAt);
+            mScheduledUptime = runAt;
+        }
+    }
+
+    /**
+     * Drops any pending events without running the action.
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPendingEvents = 0;
+    }
+
+    /**
+     * Returns whether there are events that haven't been flushed yet.
+     */
+    public synchronized boolean isPending() {
+        return mPendingEvents > 0;
+    }
+
+    /**
+     * Returns the total number of events scheduled.
+     */
+    public synchronized long getTotalEvents() {
+        return mTotalEvents;
+    }
+
+    /**
+     * Returns the number of times the action has run.
+     */
+    public synchronized int getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Returns the number of times the action ran because the maximum wait elapsed, rather than
+     * the quiet period.
+     */
+    public synchronized int getMaxWaitFlushCount() {
+        return mMaxWaitFlushCount;
+    }
+
+    /**
+     * Returns the number of events absorbed by the most recent run of the action.
+     */
+    public synchronized int getLastFlushEvents() {
+        return mLastFlushEvents;
+    }
+
+    /**
+     * Returns the largest number of events absorbed by a single run of the action.
+     */
+    public synchronized int getMaxFlushEvents() {
+        return mMaxFlushEvents;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "flushes=" + mFlushCount
+                + " (" + mMaxWaitFlushCount + " at max wait)"
+                + ", events=" + mTotalEvents
+                + ", last=" + mLastFlushEvents
+                + ", max=" + mMaxFlushEvents;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CoalescingScheduler.this) {
+                if (mPendingEvents == 0) {
+                    return;
+                }
+
+                ++mFlushCount;
+                if (SystemClock.uptimeMillis() - mFirstEventUptime >= mMaxWaitMillis) {
+                    ++mMaxWaitFlushCount;
+                }
+                mLastFlushEvents = mPendingEvents;
+                mMaxFlushEvents = Math.max(mMaxFlushEvents, mPendingEvents);
+                mPendingEvents = 0;
+            }
+
+            mAction.run();
+        }
+    };
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * Keeps track of what is currently displaying extension data: app widgets, the daydream and
+ * Read API clients. When nothing is, background refreshes (periodic and screen-on) are
+ * suspended, and the next full refresh once a consumer appears catches up on them.
+ *
+ * <p>All methods are thread-safe.
+ */
+class ConsumerTracker {
+    private static final String TAG = LogUtils.makeLogTag(ConsumerTracker.class);
+
+    private static ConsumerTracker sInstance;
+
+    private final Context mApplicationContext;
+
+    // Guarded by this object's monitor.
+    private boolean mDaydreamAttached;
+    private boolean mReadApiBound;
+    private int mSuspendedRefreshCount;
+
+    public static synchronized ConsumerTracker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConsumerTracker(context);
+        }
+
+        return sInstance;
+    }
+
+    private ConsumerTracker(Context context) {
+        mApplicationContext = context.getApplicationContext();
+    }
+
+    public synchronized void setDaydreamAttached(boolean attached) {
+        mDaydreamAttached = attached;
+        LOGD(TAG, "Daydream " + (attached ? "attached." : "detached."));
+    }
+
+    public synchronized void setReadApiBound(boolean bound) {
+        mReadApiBound = bound;
+        LOGD(TAG, "Read API " + (bound ? "bound." : "unbound."));
+    }
+
+    /**
+     * Returns the IDs of DashClock's app widgets.
+     */
+    public int[] getWidgetIds() {
+        int[] appWidgetIds = AppWidgetManager.getInstance(mApplicationContext).getAppWidgetIds(
+                new ComponentName(mApplicationContext, WidgetProvider.class));
+        return (appWidgetIds != null) ? appWidgetIds : new int[0];
+    }
+
+    /**
+     * Returns whether anything is currently displaying extension data.
+     */
+    public boolean hasConsumers() {
+        synchronized (this) {
+            if (mDaydreamAttached || mReadApiBound) {
+                return true;
+            }
+        }
+
+        return getWidgetIds().length > 0;
+    }
+
+    /**
+     * Records that a background refresh was skipped because nothing is displaying extension data.
+     */
+    public synchronized void onRefreshSuspended(int reason) {
+        ++mSuspendedRefreshCount;
+        LOGD(TAG, "No consumers; skipped refresh with reason " + reason + " ("
+                + mSuspendedRefreshCount + " skipped since the last full refresh).");
+    }
+
+    /**
+     * Records a full refresh of all extensions, which catches up on any skipped refreshes.
+     */
+    public synchronized void onFullRefresh() {
+        if (mSuspendedRefreshCount > 0) {
+            LOGD(TAG, "Catching up on " + mSuspendedRefreshCount + " skipped refresh(es).");
+            mSuspendedRefreshCount = 0;
+        }
+    }
+
+    /**
+     * Returns whether background refreshes were skipped since the last full refresh.
+     */
+    public synchronized boolean isRefreshSuspended() {
+        return mSuspendedRefreshCount > 0;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * Watches content URIs on behalf of extensions. Each distinct URI is registered with the
+ * {@link ContentResolver} once, no matter how many extensions watch it, and each change is
+ * delivered to the {@link Callback} once, with all the extensions watching that URI.
+ *
+ * <p>Subscriptions are reference counted per (URI, extension) pair, so the same extension can
+ * subscribe to a URI for different reasons (e.g. declared in its manifest and requested at
+ * runtime) and only stops being notified once every subscription is removed.
+ *
+ * <p>All methods are thread-safe. The callback is called on the given handler's thread.
+ */
+class ContentObserverRegistry {
+    private static final String TAG = LogUtils.makeLogTag(ContentObserverRegistry.class);
+
+    public static interface Callback {
+        void onContentChanged(Uri uri, Set<ComponentName> subscribers);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    // Guarded by this object's monitor.
+    private final Map<Uri, UriObserver> mObservers = new HashMap<Uri, UriObserver>();
+
+    public ContentObserverRegistry(ContentResolver resolver, Handler handler,
+            Callback callback) {
+        mResolver = resolver;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Adds a subscription for the given extension to the given URI, registering an observer for
+     * the URI if it isn't already watched.
+     */
+    public synchronized void subscribe(Uri uri, ComponentName cn) {
+        UriObserver observer = mObservers.get(uri);
+        if (observer == null) {
+            observer = new UriObserver(uri);
+            mResolver.registerContentObserver(uri, true, observer);
+            mObservers.put(uri, observer);
+        }
+
+        Integer count = observer.subscriptions.get(cn);
+        observer.subscriptions.put(cn, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * Removes one subscription for the given extension to the given URI, unregistering the URI's
+     * observer once nothing subscribes to it anymore.
+     */
+    public synchronized void unsubscribe(Uri uri, ComponentName cn) {
+        UriObserver observer = mObservers.get(uri);
+        if (observer == null) {
+            return;
+        }
+
+        Integer count = observer.subscriptions.get(cn);
+        if (count == null) {
+            return;
+        } else if (count > 1) {
+            observer.subscriptions.put(cn, count - 1);
+            return;
+        }
+
+        observer.subscriptions.remove(cn);
+        if (observer.subscriptions.isEmpty()) {
+            mResolver.unregisterContentObserver(observer);
+            mObservers.remove(uri);
+        }
+    }
+
+    /**
+     * Returns the number of distinct URIs currently registered with the content resolver.
+     */
+    public synchronized int getObservedUriCount() {
+        return mObservers.size();
+    }
+
+    /**
+     * Returns the number of change notifications received for each currently observed URI.
+     */
+    public synchronized Map<Uri, Integer> getNotificationCounts() {
+        Map<Uri, Integer> counts = new HashMap<Uri, Integer>();
+        for (UriObserver observer : mObservers.values()) {
+            counts.put(observer.uri, observer.notificationCount);
+        }
+        return counts;
+    }
+
+    private class UriObserver extends ContentObserver {
+        final Uri uri;
+        final Map<ComponentName, Integer> subscriptions = new HashMap<ComponentName, Integer>();
+        int notificationCount;
+
+        UriObserver(Uri uri) {
+            super(mHandler);
+            this.uri = uri;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            Set<ComponentName> subscribers;
+            int notificationNumber;
+            synchronized (ContentObserverRegistry.this) {
+                if (mObservers.get(uri) != this) {
+                    // Unregistered in the meantime.
+                    return;
+                }
+
+                notificationNumber = ++notificationCount;
+                subscribers = new HashSet<ComponentName>(subscriptions.keySet());
+            }
+
+            LOGD(TAG, "Content changed for " + uri + " (notification #" + notificationNumber
+                    + "); notifying " + subscribers.size() + " extension(s).");
+            mCallback.onContentChanged(uri, subscribers);
+        }
+    }
+}
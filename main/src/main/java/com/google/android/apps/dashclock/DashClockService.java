@@ -21,20 +21,24 @@ import com.google.android.apps.dashclock.api.IDashClockDataProvider;
 import com.google.android.apps.dashclock.api.VisibleExtension;
 import com.google.android.apps.dashclock.render.WidgetRenderer;
 
+import android.annotation.TargetApi;
 import android.app.Service;
-import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.*;
 import android.support.v4.content.WakefulBroadcastReceiver;
 import android.text.TextUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
-import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
 
 /**
  * The primary service for DashClock. This service is in charge of updating widget UI (see {@link
@@ -78,13 +82,19 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
     public static final String ACTION_BIND_DASHCLOCK_SERVICE
             = "com.google.android.apps.dashclock.action.BIND_SERVICE";
 
-    /**
-     * The maximum duration for the wakelock.
-     */
-    private static final long UPDATE_WAKELOCK_TIMEOUT_MILLIS = 30 * SECONDS_MILLIS;
-
     private ExtensionManager mExtensionManager;
     private ExtensionHost mExtensionHost;
+    private ExtensionRefreshScheduler mRefreshScheduler;
+    private ConsumerTracker mConsumerTracker;
+
+    /**
+     * Whether the screen is on. While it's off, widgets aren't rendered; changes only mark them
+     * dirty, and they're rendered once when the screen turns back on.
+     */
+    private boolean mScreenOn = true;
+    private boolean mWidgetsDirty;
+    private boolean mExpandedListDirty;
+    private int mSuppressedRenderCount;
 
     @Override
     public void onCreate() {
@@ -94,6 +104,34 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
         mExtensionHost = new ExtensionHost(this);
+        mRefreshScheduler = new ExtensionRefreshScheduler(this);
+        mConsumerTracker = ConsumerTracker.getInstance(this);
+        // The alarm doesn't survive reboots, and may have been set for extensions that have
+        // changed since.
+        scheduleRefreshes(getListings(mExtensionManager.getActiveExtensionsSnapshot()));
+
+        PowerManager pwm = (PowerManager) getSystemService(POWER_SERVICE);
+        mScreenOn = isInteractive(pwm);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenStateReceiver, filter);
+    }
+
+    /**
+     * Returns whether the device is interactive, i.e. whether its screen is on.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isInteractive(PowerManager pm) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return pm.isInteractive();
+        }
+        return isScreenOn(pm);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isScreenOn(PowerManager pm) {
+        return pm.isScreenOn();
     }
 
     @Override
@@ -101,9 +139,19 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
         super.onDestroy();
         LOGD(TAG, "onDestroy");
 
-        mUpdateHandler.removeCallbacksAndMessages(null);
+        mUpdateScheduler.cancel();
+        unregisterReceiver(mScreenStateReceiver);
         mExtensionManager.removeOnChangeListener(this);
         mExtensionHost.destroy();
+        mExtensionManager.flushExtensionData();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The process may be killed without any further callbacks, so make sure cached extension
+        // data makes it to disk.
+        mExtensionManager.flushExtensionData();
     }
 
     @Override
@@ -127,37 +175,176 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
     }
 
     @Override
-    public void onExtensionsChanged(ComponentName sourceExtension) {
-        mUpdateHandler.removeCallbacksAndMessages(null);
-        mUpdateHandler.sendMessageDelayed(
-                mUpdateHandler.obtainMessage(0, sourceExtension),
-                ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS);
+    public void onExtensionsChanged(ExtensionManager.ChangeSet changeSet) {
+        mPendingChangeSet = (mPendingChangeSet == null)
+                ? changeSet
+                : mPendingChangeSet.merge(changeSet);
+        mUpdateScheduler.schedule();
     }
 
-    private Handler mUpdateHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            LOGD(TAG, "onExtensionsChanged from "
-                    + (msg.obj != null ? "extension " + msg.obj : "DashClock"));
+    /**
+     * A handler on the main thread, where the extension host is used.
+     */
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Changes received since the last widget update, or null if there are none.
+     */
+    private ExtensionManager.ChangeSet mPendingChangeSet;
+
+    /**
+     * Collapses change sets into widget updates. Runs on the main thread, as do change listeners.
+     */
+    private CoalescingScheduler mUpdateScheduler = new CoalescingScheduler(mHandler,
+            ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS,
+            ExtensionHost.UPDATE_COLLAPSE_MAX_WAIT_MILLIS,
+            new Runnable() {
+                @Override
+                public void run() {
+                    handleExtensionsChanged();
+                }
+            });
+
+    /**
+     * Updates widgets and notifies Read API clients of the changes received since the last update.
+     */
+    private void handleExtensionsChanged() {
+        ExtensionManager.ChangeSet changeSet = mPendingChangeSet;
+        mPendingChangeSet = null;
+        if (changeSet == null) {
+            return;
+        }
+
+        LOGD(TAG, "onExtensionsChanged: " + changeSet.changedExtensions.size()
+                + " extension(s) with new data"
+                + (changeSet.activeExtensionsChanged ? ", active extensions changed" : "")
+                + (changeSet.renderOptionsChanged ? ", render options changed" : "")
+                + "; " + mUpdateScheduler);
+
+        ExtensionManager.ActiveExtensionsSnapshot snapshot
+                = mExtensionManager.getActiveExtensionsSnapshot();
+        if (changeSet.activeExtensionsChanged) {
+            scheduleRefreshes(getListings(snapshot));
+        }
+
+        if (affectsReadApi(changeSet, snapshot)) {
             sendBroadcast(new Intent(ACTION_EXTENSIONS_CHANGED));
-            handleUpdateWidgets(new Intent());
-            WidgetRenderer.notifyDataSetChanged(DashClockService.this);
+        }
+
+        if (!mScreenOn) {
+            // Rendering wakes up the launcher; wait until the widgets can actually be seen.
+            mWidgetsDirty = true;
+            mExpandedListDirty |= affectsExpandedList(changeSet, snapshot);
+            ++mSuppressedRenderCount;
+            return;
+        }
+
+        handleUpdateWidgets(new Intent());
+
+        if (affectsExpandedList(changeSet, snapshot)) {
+            WidgetRenderer.notifyDataSetChanged(this);
+        }
+    }
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            if (mScreenOn) {
+                renderDirtyWidgets();
+            }
         }
     };
 
+    /**
+     * Renders widgets once for all the changes received while the screen was off.
+     */
+    private void renderDirtyWidgets() {
+        if (!mWidgetsDirty) {
+            return;
+        }
+
+        LOGD(TAG, "Screen on; rendering widgets for " + mSuppressedRenderCount
+                + " update(s) received while the screen was off.");
+        mWidgetsDirty = false;
+        mSuppressedRenderCount = 0;
+        handleUpdateWidgets(new Intent());
+
+        if (mExpandedListDirty) {
+            mExpandedListDirty = false;
+            WidgetRenderer.notifyDataSetChanged(this);
+        }
+    }
+
+    /**
+     * Returns whether the given changes are visible through the Read API, which only exposes
+     * world-readable extensions.
+     */
+    private static boolean affectsReadApi(ExtensionManager.ChangeSet changeSet,
+            ExtensionManager.ActiveExtensionsSnapshot snapshot) {
+        if (changeSet.activeExtensionsChanged) {
+            return true;
+        }
+
+        for (ComponentName cn : changeSet.changedExtensions) {
+            ExtensionManager.ExtensionWithData ewd = snapshot.get(cn);
+            if (ewd != null && ewd.listing.worldReadable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the given changes affect the expanded (collection) widget list, which
+     * doesn't show always-collapsed extensions.
+     */
+    private static boolean affectsExpandedList(ExtensionManager.ChangeSet changeSet,
+            ExtensionManager.ActiveExtensionsSnapshot snapshot) {
+        if (!changeSet.isDataOnly()) {
+            return true;
+        }
+
+        for (ComponentName cn : changeSet.changedExtensions) {
+            ExtensionManager.ExtensionWithData ewd = snapshot.get(cn);
+            if (ewd != null && !ewd.renderOptions.alwaysCollapsed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<ExtensionManager.ExtensionListing> getListings(
+            ExtensionManager.ActiveExtensionsSnapshot snapshot) {
+        List<ExtensionManager.ExtensionListing> listings
+                = new ArrayList<ExtensionManager.ExtensionListing>();
+        for (ExtensionManager.ExtensionWithData ewd : snapshot.active) {
+            listings.add(ewd.listing);
+        }
+        return listings;
+    }
+
+    /**
+     * Schedules periodic refreshes of the given extensions, or cancels them if nothing is
+     * displaying extension data.
+     */
+    private void scheduleRefreshes(List<ExtensionManager.ExtensionListing> listings) {
+        if (!mConsumerTracker.hasConsumers()) {
+            listings = Collections.emptyList();
+        }
+        mRefreshScheduler.schedule(listings);
+    }
+
     /**
      * Updates a widget's UI.
      */
     private void handleUpdateWidgets(Intent intent) {
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
-
         // Either update all app widgets, or only those which were requested.
         int appWidgetIds[];
         if (intent.hasExtra(EXTRA_APPWIDGET_ID)) {
             appWidgetIds = new int[]{intent.getIntExtra(EXTRA_APPWIDGET_ID, -1)};
         } else {
-            appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(
-                    this, WidgetProvider.class));
+            appWidgetIds = mConsumerTracker.getWidgetIds();
         }
 
         StringBuilder sb = new StringBuilder();
@@ -176,31 +363,60 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
         int reason = intent.getIntExtra(EXTRA_UPDATE_REASON,
                 DashClockExtension.UPDATE_REASON_UNKNOWN);
 
-        PowerManager pwm = (PowerManager) getSystemService(POWER_SERVICE);
-        PowerManager.WakeLock lock = pwm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        lock.acquire(UPDATE_WAKELOCK_TIMEOUT_MILLIS);
-
-        try {
-            // Either update all extensions, or only the requested one.
-            String updateExtension = intent.getStringExtra(EXTRA_COMPONENT_NAME);
-            if (!TextUtils.isEmpty(updateExtension)) {
-                ComponentName cn = ComponentName.unflattenFromString(updateExtension);
-                mExtensionHost.execute(cn, ExtensionHost.UPDATE_OPERATIONS.get(reason),
-                        ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS, reason);
-            } else {
-                for (ComponentName cn : mExtensionManager.getActiveExtensionNames()) {
-                    mExtensionHost.execute(cn, ExtensionHost.UPDATE_OPERATIONS.get(reason),
-                            ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS, reason);
+        // Either update all extensions, or only the requested one.
+        List<ComponentName> extensions;
+        String updateExtension = intent.getStringExtra(EXTRA_COMPONENT_NAME);
+        if (!TextUtils.isEmpty(updateExtension)) {
+            extensions = Collections.singletonList(
+                    ComponentName.unflattenFromString(updateExtension));
+        } else {
+            List<ExtensionManager.ExtensionListing> listings
+                    = getListings(mExtensionManager.getActiveExtensionsSnapshot());
+            if (reason == DashClockExtension.UPDATE_REASON_PERIODIC) {
+                if (!mConsumerTracker.hasConsumers()) {
+                    // Nothing would show the new data; stop refreshing (this cancels the
+                    // periodic alarm) until something does.
+                    mConsumerTracker.onRefreshSuspended(reason);
+                    scheduleRefreshes(listings);
+                    return;
                 }
+
+                // Only refresh the extensions whose refresh interval is (nearly) up.
+                extensions = mRefreshScheduler.onWakeup(listings);
+            } else {
+                extensions = mExtensionManager.getActiveExtensionNames();
+                mRefreshScheduler.onRefreshed(extensions);
+                mConsumerTracker.onFullRefresh();
             }
-        } finally {
-            lock.release();
+            scheduleRefreshes(listings);
+        }
+
+        // Keep the device awake until the extensions have published their data, not just until
+        // the updates are requested.
+        mExtensionHost.startUpdateRound(extensions, reason);
+        for (ComponentName cn : extensions) {
+            mExtensionHost.execute(cn, ExtensionHost.UPDATE_OPERATIONS.get(reason),
+                    ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS, reason);
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mExtensionHost.dump(writer);
+
+        writer.println("Widget updates:");
+        writer.println("  " + mUpdateScheduler.getFlushCount() + " update(s) for "
+                + mUpdateScheduler.getTotalEvents() + " change(s), "
+                + mUpdateScheduler.getMaxWaitFlushCount() + " forced by the maximum wait");
+        writer.println("  " + mUpdateScheduler.getLastFlushEvents() + " change(s) in the last"
+                + " update, " + mUpdateScheduler.getMaxFlushEvents() + " at most");
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         if (ACTION_BIND_DASHCLOCK_SERVICE.equals(intent.getAction())) {
+            onReadApiBound();
+
             // Private Read API
             return new IDashClockDataProvider.Stub() {
                 @Override
@@ -222,11 +438,45 @@ public class DashClockService extends Service implements ExtensionManager.OnChan
 
                 @Override
                 public void updateExtensions() {
-                    // TODO: provide an update reason (currently UNKNOWN)
-                    handleUpdateExtensions(new Intent());
+                    // This is called on a binder thread, while the extension host is only used
+                    // on the main thread.
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // TODO: provide an update reason (currently UNKNOWN)
+                            handleUpdateExtensions(new Intent());
+                        }
+                    });
                 }
             };
         }
         return null;
     }
+
+    @Override
+    public void onRebind(Intent intent) {
+        super.onRebind(intent);
+        if (ACTION_BIND_DASHCLOCK_SERVICE.equals(intent.getAction())) {
+            onReadApiBound();
+        }
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (ACTION_BIND_DASHCLOCK_SERVICE.equals(intent.getAction())) {
+            mConsumerTracker.setReadApiBound(false);
+        }
+
+        // Get onRebind() calls for later Read API clients.
+        return true;
+    }
+
+    private void onReadApiBound() {
+        mConsumerTracker.setReadApiBound(true);
+        if (mConsumerTracker.isRefreshSuspended()) {
+            // Refreshes were skipped while nothing was displaying extension data; catch up.
+            handleUpdateExtensions(new Intent().putExtra(EXTRA_UPDATE_REASON,
+                    DashClockExtension.UPDATE_REASON_MANUAL));
+        }
+    }
 }
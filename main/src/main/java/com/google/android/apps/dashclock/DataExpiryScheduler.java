@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+
+/**
+ * Tracks when the data of active extensions expires (see {@link ExtensionData#expiresAt()}) and
+ * calls back once it does. A single alarm is kept, set for the earliest upcoming expiry. The
+ * alarm doesn't wake the device; expiries that pass while it's asleep are handled as soon as it
+ * wakes up.
+ *
+ * <p>Not thread-safe; only use on the main thread.
+ */
+class DataExpiryScheduler {
+    private static final String TAG = LogUtils.makeLogTag(DataExpiryScheduler.class);
+
+    private static final String ACTION_DATA_EXPIRED
+            = "com.google.android.apps.dashclock.action.DATA_EXPIRED";
+
+    public static interface Callback {
+        void onDataExpired(Set<ComponentName> expired);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final Handler mHandler = new Handler();
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+
+    /**
+     * Expiry times of active extensions' data, keyed by extension.
+     */
+    private final Map<ComponentName, Long> mExpiries = new HashMap<ComponentName, Long>();
+
+    /**
+     * The expiry time already reported for each extension, so that data that stays expired is
+     * only reported once.
+     */
+    private final Map<ComponentName, Long> mReportedExpiries = new HashMap<ComponentName, Long>();
+
+    private long mAlarmTime;
+    private int mExpiredCount;
+
+    public DataExpiryScheduler(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_DATA_EXPIRED).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        context.registerReceiver(mAlarmReceiver, new IntentFilter(ACTION_DATA_EXPIRED));
+    }
+
+    public void destroy() {
+        mContext.unregisterReceiver(mAlarmReceiver);
+        mAlarmManager.cancel(mAlarmIntent);
+        mHandler.removeCallbacks(mCheckRunnable);
+    }
+
+    /**
+     * Updates the expiry times from the given snapshot of active extensions and reschedules the
+     * alarm accordingly.
+     */
+    public void update(ExtensionManager.ActiveExtensionsSnapshot snapshot) {
+        mExpiries.clear();
+        for (ExtensionManager.ExtensionWithData ewd : snapshot.active) {
+            long expiresAt = ewd.latestData.expiresAt();
+            if (expiresAt > 0) {
+                mExpiries.put(ewd.listing.componentName, expiresAt);
+            }
+        }
+        mReportedExpiries.keySet().retainAll(mExpiries.keySet());
+
+        // Handle anything that's already expired (e.g. data restored at startup) right away.
+        mHandler.removeCallbacks(mCheckRunnable);
+        mHandler.post(mCheckRunnable);
+    }
+
+    /**
+     * Returns the number of times extension data expired since this scheduler was created.
+     */
+    public int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            long nextExpiry = Long.MAX_VALUE;
+            Set<ComponentName> expired = new HashSet<ComponentName>();
+            Iterator<Map.Entry<ComponentName, Long>> it = mExpiries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ComponentName, Long> entry = it.next();
+                long expiresAt = entry.getValue();
+                if (expiresAt > now) {
+                    nextExpiry = Math.min(nextExpiry, expiresAt);
+                } else if (!Long.valueOf(expiresAt).equals(
+                        mReportedExpiries.get(entry.getKey()))) {
+                    mReportedExpiries.put(entry.getKey(), expiresAt);
+                    expired.add(entry.getKey());
+                }
+            }
+
+            scheduleAlarm((nextExpiry != Long.MAX_VALUE) ? nextExpiry : 0);
+
+            if (!expired.isEmpty()) {
+                mExpiredCount += expired.size();
+                LOGD(TAG, "Data expired for " + expired.size() + " extension(s) ("
+                        + mExpiredCount + " in total).");
+                mCallback.onDataExpired(expired);
+            }
+        }
+    };
+
+    /**
+     * Sets the alarm for the given time, or cancels it if the time is 0.
+     */
+    private void scheduleAlarm(long time) {
+        if (time == mAlarmTime) {
+            return;
+        }
+
+        mAlarmTime = time;
+        if (time == 0) {
+            mAlarmManager.cancel(mAlarmIntent);
+            return;
+        }
+
+        LOGD(TAG, "Next extension data expiry in " + (time - System.currentTimeMillis())
+                + " ms.");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mAlarmManager.setExact(AlarmManager.RTC, time, mAlarmIntent);
+        } else {
+            mAlarmManager.set(AlarmManager.RTC, time, mAlarmIntent);
+        }
+    }
+
+    private final BroadcastReceiver mAlarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mAlarmTime = 0;
+            mCheckRunnable.run();
+        }
+    };
+}
@@ -20,7 +20,6 @@ import android.animation.Animator;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.annotation.TargetApi;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
@@ -81,6 +80,15 @@ public class DaydreamService extends DreamService implements
     private static final float SCALE_WHEN_MOVING = 0.85f;
 
     private Handler mHandler = new Handler();
+    private CoalescingScheduler mExtensionsChangedScheduler = new CoalescingScheduler(mHandler,
+            ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS,
+            ExtensionHost.UPDATE_COLLAPSE_MAX_WAIT_MILLIS,
+            new Runnable() {
+                @Override
+                public void run() {
+                    renderDaydream(false);
+                }
+            });
     private ExtensionManager mExtensionManager;
     private int mTravelDistance;
     private int mForegroundColor;
@@ -100,6 +108,7 @@ public class DaydreamService extends DreamService implements
         super.onAttachedToWindow();
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
+        ConsumerTracker.getInstance(this).setDaydreamAttached(true);
 
         // Update extensions and ensure the periodic refresh is set up.
         PeriodicExtensionRefreshReceiver.updateExtensionsAndEnsurePeriodicRefresh(this);
@@ -133,8 +142,10 @@ public class DaydreamService extends DreamService implements
     @Override
     public void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        ConsumerTracker.getInstance(this).setDaydreamAttached(false);
         mExtensionManager.removeOnChangeListener(this);
         mExtensionManager = null;
+        mExtensionsChangedScheduler.cancel();
         mHandler.removeCallbacksAndMessages(null);
         mAttached = false;
     }
@@ -147,18 +158,14 @@ public class DaydreamService extends DreamService implements
     }
 
     @Override
-    public void onExtensionsChanged(ComponentName sourceExtension) {
-        mHandler.removeCallbacks(mHandleExtensionsChanged);
-        mHandler.postDelayed(mHandleExtensionsChanged,
-                ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS);
-    }
-
-    private Runnable mHandleExtensionsChanged = new Runnable() {
-        @Override
-        public void run() {
-            renderDaydream(false);
+    public void onExtensionsChanged(ExtensionManager.ChangeSet changeSet) {
+        if (!changeSet.activeExtensionsChanged && changeSet.changedExtensions.isEmpty()) {
+            // The daydream doesn't use render options.
+            return;
         }
-    };
+
+        mExtensionsChangedScheduler.schedule();
+    }
 
     private void layoutDream() {
         setContentView(R.layout.daydream);
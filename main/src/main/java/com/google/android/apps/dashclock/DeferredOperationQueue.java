@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+
+/**
+ * A bounded queue of operations waiting for an extension to (re)connect. Operations are keyed by
+ * their collapse token or, if they have none, by the operation itself (update operations are
+ * shared per update reason; see {@link ExtensionHost#UPDATE_OPERATIONS}). Adding an operation
+ * whose key is already queued replaces the queued operation in place instead of appending.
+ * When the queue is full, the oldest operation is dropped.
+ *
+ * <p>All methods are thread-safe.
+ */
+class DeferredOperationQueue {
+    private static final String TAG = LogUtils.makeLogTag(DeferredOperationQueue.class);
+
+    private final String mName;
+    private final int mCapacity;
+
+    // All fields below are guarded by this object's monitor.
+    private final LinkedHashMap<Object, ExtensionHost.Operation> mOperations
+            = new LinkedHashMap<Object, ExtensionHost.Operation>();
+
+    private int mAddedCount;
+    private int mCollapsedCount;
+    private int mDroppedCount;
+
+    /**
+     * @param name     A name for this queue, used in log messages.
+     * @param capacity The maximum number of operations to hold.
+     */
+    public DeferredOperationQueue(String name, int capacity) {
+        mName = name;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Queues the given operation, replacing any queued operation with the same key.
+     *
+     * @param collapseToken The operation's collapse token, or null.
+     */
+    public synchronized void add(Object collapseToken, ExtensionHost.Operation operation) {
+        ++mAddedCount;
+        Object key = (collapseToken != null) ? collapseToken : operation;
+        if (mOperations.containsKey(key)) {
+            ++mCollapsedCount;
+            mOperations.put(key, operation);
+            return;
+        }
+
+        if (mOperations.size() >= mCapacity) {
+            Iterator<Map.Entry<Object, ExtensionHost.Operation>> it
+                    = mOperations.entrySet().iterator();
+            Object droppedKey = it.next().getKey();
+            it.remove();
+            ++mDroppedCount;
+            LOGW(TAG, "Deferred operation queue for " + mName + " is full; dropped operation "
+                    + droppedKey + " (" + this + ").");
+        }
+
+        mOperations.put(key, operation);
+    }
+
+    /**
+     * Removes and returns all queued operations, oldest first.
+     */
+    public synchronized List<ExtensionHost.Operation> drain() {
+        List<ExtensionHost.Operation> operations
+                = new ArrayList<ExtensionHost.Operation>(mOperations.values());
+        mOperations.clear();
+        return operations;
+    }
+
+    public synchronized int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Returns the number of operations ever added to this queue.
+     */
+    public synchronized int getAddedCount() {
+        return mAddedCount;
+    }
+
+    /**
+     * Returns the number of operations that replaced an already queued operation.
+     */
+    public synchronized int getCollapsedCount() {
+        return mCollapsedCount;
+    }
+
+    /**
+     * Returns the number of operations dropped because the queue was full.
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + mOperations.size()
+                + ", added=" + mAddedCount
+                + ", collapsed=" + mCollapsedCount
+                + ", dropped=" + mDroppedCount;
+    }
+}
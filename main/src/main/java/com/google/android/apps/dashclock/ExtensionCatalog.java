@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import com.google.android.apps.dashclock.api.DashClockExtension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.Utils.MINUTES_MILLIS;
+
+/**
+ * An in-memory catalog of installed extensions. The full {@link PackageManager} scan happens once,
+ * on first access; after that, only the listings for a changed package are refreshed (see
+ * {@link #invalidatePackage(String)}). Extension icons aren't loaded as part of the scan; see
+ * {@link ExtensionManager.ExtensionListing#getIcon(Context)}.
+ */
+class ExtensionCatalog {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionCatalog.class);
+
+    /**
+     * The protocol version with which extensions can be served through a shared channel service.
+     */
+    private static final int PROTOCOL_VERSION_CHANNELS = 3;
+
+    private final Context mContext;
+
+    /**
+     * Listings keyed by extension component name, or null if the catalog hasn't been built yet.
+     * Guarded by {@link #mLock}.
+     */
+    private Map<ComponentName, ExtensionManager.ExtensionListing> mListings;
+    private final Object mLock = new Object();
+
+    public ExtensionCatalog(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns a listing of all available (installed) extensions.
+     */
+    public List<ExtensionManager.ExtensionListing> getListings() {
+        synchronized (mLock) {
+            ensureBuilt();
+            return new ArrayList<ExtensionManager.ExtensionListing>(mListings.values());
+        }
+    }
+
+    /**
+     * Returns the listing for the given installed extension, or null if it isn't installed.
+     */
+    public ExtensionManager.ExtensionListing getListing(ComponentName componentName) {
+        synchronized (mLock) {
+            ensureBuilt();
+            return mListings.get(componentName);
+        }
+    }
+
+    /**
+     * Refreshes the listings for extensions in the given package, e.g. after it was installed,
+     * updated or removed.
+     */
+    public void invalidatePackage(String packageName) {
+        synchronized (mLock) {
+            if (mListings == null) {
+                // Nothing to refresh yet; the full scan will pick up the change.
+                return;
+            }
+
+            Iterator<ComponentName> it = mListings.keySet().iterator();
+            while (it.hasNext()) {
+                if (packageName.equals(it.next().getPackageName())) {
+                    it.remove();
+                }
+            }
+
+            List<ExtensionManager.ExtensionListing> listings = queryListings(packageName);
+            for (ExtensionManager.ExtensionListing listing : listings) {
+                mListings.put(listing.componentName, listing);
+            }
+
+            LOGD(TAG, "Refreshed " + listings.size() + " extension listing(s) for package "
+                    + packageName + ".");
+        }
+    }
+
+    private void ensureBuilt() {
+        if (mListings != null) {
+            return;
+        }
+
+        mListings = new LinkedHashMap<ComponentName, ExtensionManager.ExtensionListing>();
+        for (ExtensionManager.ExtensionListing listing : queryListings(null)) {
+            mListings.put(listing.componentName, listing);
+        }
+        LOGD(TAG, "Built extension catalog with " + mListings.size() + " extension(s).");
+    }
+
+    /**
+     * Queries the package manager for extensions, optionally only those in the given package.
+     */
+    private List<ExtensionManager.ExtensionListing> queryListings(String packageName) {
+        List<ExtensionManager.ExtensionListing> listings
+                = new ArrayList<ExtensionManager.ExtensionListing>();
+        PackageManager pm = mContext.getPackageManager();
+        Intent intent = new Intent(DashClockExtension.ACTION_EXTENSION);
+        if (packageName != null) {
+            intent.setPackage(packageName);
+        }
+
+        List<ResolveInfo> resolveInfos = pm.queryIntentServices(intent,
+                PackageManager.GET_META_DATA);
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            ExtensionManager.ExtensionListing listing = new ExtensionManager.ExtensionListing();
+            listing.componentName = new ComponentName(resolveInfo.serviceInfo.packageName,
+                    resolveInfo.serviceInfo.name);
+            listing.title = resolveInfo.loadLabel(pm).toString();
+            Bundle metaData = resolveInfo.serviceInfo.metaData;
+            if (metaData != null) {
+                listing.protocolVersion = metaData.getInt("protocolVersion");
+                listing.worldReadable = metaData.getBoolean("worldReadable", false);
+                listing.description = metaData.getString("description");
+                String settingsActivity = metaData.getString("settingsActivity");
+                if (!TextUtils.isEmpty(settingsActivity)) {
+                    listing.settingsActivity = ComponentName.unflattenFromString(
+                            resolveInfo.serviceInfo.packageName + "/" + settingsActivity);
+                }
+                String watchContentUris = metaData.getString("watchContentUris");
+                if (!TextUtils.isEmpty(watchContentUris)) {
+                    List<Uri> uris = new ArrayList<Uri>();
+                    for (String uri : watchContentUris.trim().split("\\s+")) {
+                        uris.add(Uri.parse(uri));
+                    }
+                    listing.watchContentUris = Collections.unmodifiableList(uris);
+                }
+                listing.refreshIntervalMillis
+                        = metaData.getInt("refreshIntervalMinutes") * MINUTES_MILLIS;
+                String channelService = metaData.getString("channelService");
+                if (!TextUtils.isEmpty(channelService)
+                        && listing.protocolVersion >= PROTOCOL_VERSION_CHANNELS) {
+                    listing.channelService = ComponentName.unflattenFromString(
+                            resolveInfo.serviceInfo.packageName + "/" + channelService);
+                }
+            }
+
+            listing.resolveInfo = resolveInfo;
+            listings.add(listing);
+        }
+
+        return listings;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import com.google.android.apps.dashclock.api.ExtensionChannelService;
+import com.google.android.apps.dashclock.api.internal.IExtensionChannels;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+
+/**
+ * Binds to channel services, each of which serves several extensions in its package over a
+ * single binding (see {@link ExtensionChannelService}). Extensions reached through a channel
+ * service are attached with a regular {@link ServiceConnection}, which is called back as if the
+ * host had bound to the extension directly: once the extension's binder has been obtained from
+ * the channel service, and when the extension's binder or the channel service's process dies.
+ *
+ * <p>All methods are thread-safe. Connection callbacks are called on the given handler's thread.
+ */
+class ExtensionChannelBindings {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionChannelBindings.class);
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+
+    // Guarded by this object's monitor.
+    private final Map<ComponentName, ChannelBinding> mBindings
+            = new HashMap<ComponentName, ChannelBinding>();
+
+    /**
+     * @param handler  The handler whose thread connection callbacks are called on.
+     * @param executor The executor that obtains and releases extension binders through channel
+     *                 services, which blocks on calls to the channel service. This shouldn't be
+     *                 shared with work that must not wait on channel services.
+     */
+    public ExtensionChannelBindings(Context context, Handler handler, Executor executor) {
+        mContext = context;
+        mHandler = handler;
+        mExecutor = executor;
+    }
+
+    /**
+     * Attaches the given extension to the given channel service, binding to the channel service
+     * if no other extension is attached to it.
+     *
+     * @return Whether the channel service could be bound.
+     */
+    public synchronized boolean attach(ComponentName channelService, ComponentName extension,
+            ServiceConnection connection) {
+        ChannelBinding binding = mBindings.get(channelService);
+        if (binding == null) {
+            binding = new ChannelBinding(channelService);
+            try {
+                if (!mContext.bindService(new Intent().setComponent(channelService), binding,
+                        Context.BIND_AUTO_CREATE)) {
+                    LOGE(TAG, "Error binding to channel service " + channelService);
+                    return false;
+                }
+            } catch (SecurityException e) {
+                LOGE(TAG, "Error binding to channel service " + channelService, e);
+                return false;
+            }
+
+            mBindings.put(channelService, binding);
+            LOGD(TAG, "Bound to channel service " + channelService + "; "
+                    + mBindings.size() + " channel service(s) bound.");
+        }
+
+        binding.extensions.put(extension, connection);
+        if (binding.channels != null) {
+            openChannel(binding, extension, connection);
+        }
+        return true;
+    }
+
+    /**
+     * Detaches the given extension from the given channel service, which releases its binding to
+     * the extension, and unbinds from the channel service once no extension is attached to it
+     * anymore. Does nothing if the extension isn't attached.
+     */
+    public synchronized void detach(ComponentName channelService, ComponentName extension) {
+        ChannelBinding binding = mBindings.get(channelService);
+        if (binding == null || binding.extensions.remove(extension) == null) {
+            return;
+        }
+
+        ExtensionDeathRecipient deathRecipient = binding.deathRecipients.remove(extension);
+        if (deathRecipient != null) {
+            deathRecipient.unlink();
+        }
+
+        if (binding.extensions.isEmpty()) {
+            // Unbinding lets the channel service be destroyed, which releases all of its channels.
+            unbindLocked(binding);
+        } else if (binding.channels != null) {
+            releaseChannel(binding, extension);
+        }
+    }
+
+    /**
+     * Returns the number of channel services currently bound.
+     */
+    public synchronized int getBindingCount() {
+        return mBindings.size();
+    }
+
+    private void unbindLocked(ChannelBinding binding) {
+        mBindings.remove(binding.componentName);
+        mContext.unbindService(binding);
+        LOGD(TAG, "Unbound from channel service " + binding.componentName + "; "
+                + mBindings.size() + " channel service(s) bound.");
+    }
+
+    /**
+     * Obtains the given extension's binder from the channel service, then calls the
+     * extension's connection back with it.
+     */
+    private void openChannel(final ChannelBinding binding, final ComponentName extension,
+            final ServiceConnection connection) {
+        final IExtensionChannels channels = binding.channels;
+        binding.lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                IBinder extensionBinder = null;
+                try {
+                    extensionBinder = channels.getChannel(extension.getClassName());
+                } catch (RemoteException e) {
+                    LOGE(TAG, "Error opening channel for extension " + extension, e);
+                } catch (SecurityException e) {
+                    LOGE(TAG, "Error opening channel for extension " + extension, e);
+                }
+
+                final IBinder result = extensionBinder;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChannelOpened(binding, extension, connection, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asks the channel service to release its binding to the given extension. Runs after any
+     * pending {@link #openChannel} for the extension, so that a channel that is still being opened
+     * is released too.
+     */
+    private void releaseChannel(ChannelBinding binding, final ComponentName extension) {
+        final IExtensionChannels channels = binding.channels;
+        binding.lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channels.releaseChannel(extension.getClassName());
+                } catch (RemoteException e) {
+                    LOGW(TAG, "Error releasing channel for extension " + extension, e);
+                } catch (SecurityException e) {
+                    LOGW(TAG, "Error releasing channel for extension " + extension, e);
+                }
+            }
+        });
+    }
+
+    private void onChannelOpened(ChannelBinding binding, ComponentName extension,
+            ServiceConnection connection, IBinder extensionBinder) {
+        synchronized (this) {
+            if (mBindings.get(binding.componentName) != binding
+                    || binding.extensions.get(extension) != connection) {
+                // Detached in the meantime.
+                return;
+            }
+        }
+
+        if (extensionBinder == null) {
+            LOGW(TAG, "Channel service " + binding.componentName
+                    + " didn't provide extension " + extension);
+            detach(binding.componentName, extension);
+            connection.onServiceDisconnected(extension);
+            return;
+        }
+
+        ExtensionDeathRecipient deathRecipient = new ExtensionDeathRecipient(binding, extension,
+                connection, extensionBinder);
+        try {
+            extensionBinder.linkToDeath(deathRecipient, 0);
+        } catch (RemoteException e) {
+            // The extension already died.
+            deathRecipient.binderDied();
+            return;
+        }
+
+        synchronized (this) {
+            binding.deathRecipients.put(extension, deathRecipient);
+        }
+        connection.onServiceConnected(extension, extensionBinder);
+    }
+
+    /**
+     * Detaches an extension whose binder died and calls its connection back, since the channel
+     * service may outlive it (e.g. if the extension runs in a process of its own).
+     */
+    private void onExtensionDied(ChannelBinding binding, ComponentName extension,
+            ServiceConnection connection) {
+        synchronized (this) {
+            if (mBindings.get(binding.componentName) != binding
+                    || binding.extensions.get(extension) != connection) {
+                // Detached in the meantime.
+                return;
+            }
+        }
+
+        LOGW(TAG, "Extension " + extension + " served by channel service "
+                + binding.componentName + " died.");
+        detach(binding.componentName, extension);
+        connection.onServiceDisconnected(extension);
+    }
+
+    private class ExtensionDeathRecipient implements IBinder.DeathRecipient {
+        private final ChannelBinding mBinding;
+        private final ComponentName mExtension;
+        private final ServiceConnection mConnection;
+        private final IBinder mBinder;
+
+        ExtensionDeathRecipient(ChannelBinding binding, ComponentName extension,
+                ServiceConnection connection, IBinder binder) {
+            mBinding = binding;
+            mExtension = extension;
+            mConnection = connection;
+            mBinder = binder;
+        }
+
+        void unlink() {
+            mBinder.unlinkToDeath(this, 0);
+        }
+
+        @Override
+        public void binderDied() {
+            // Called on a binder thread.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onExtensionDied(mBinding, mExtension, mConnection);
+                }
+            });
+        }
+    }
+
+    private class ChannelBinding implements ServiceConnection {
+        final ComponentName componentName;
+
+        /**
+         * Runs calls to the channel service in order, so that an extension's channel is never
+         * released before it has been opened.
+         */
+        final SerialExecutor lane;
+
+        /**
+         * The attached extensions and their connections, in attachment order.
+         */
+        final Map<ComponentName, ServiceConnection> extensions
+                = new LinkedHashMap<ComponentName, ServiceConnection>();
+
+        /**
+         * Death notifications for the binders of attached extensions that have been connected.
+         */
+        final Map<ComponentName, ExtensionDeathRecipient> deathRecipients
+                = new HashMap<ComponentName, ExtensionDeathRecipient>();
+
+        /**
+         * The channel service's interface, or null while it isn't connected.
+         */
+        IExtensionChannels channels;
+
+        ChannelBinding(ComponentName componentName) {
+            this.componentName = componentName;
+            this.lane = new SerialExecutor(componentName.flattenToShortString(), mExecutor);
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (ExtensionChannelBindings.this) {
+                channels = IExtensionChannels.Stub.asInterface(service);
+                for (Map.Entry<ComponentName, ServiceConnection> entry : extensions.entrySet()) {
+                    openChannel(this, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // The channel service's process died, taking all of its extensions with it. Drop the
+            // binding; extensions are attached again when they're next needed.
+            Map<ComponentName, ServiceConnection> disconnected;
+            synchronized (ExtensionChannelBindings.this) {
+                channels = null;
+                disconnected = new LinkedHashMap<ComponentName, ServiceConnection>(extensions);
+                extensions.clear();
+                for (ExtensionDeathRecipient deathRecipient : deathRecipients.values()) {
+                    deathRecipient.unlink();
+                }
+                deathRecipients.clear();
+                if (mBindings.get(componentName) == this) {
+                    unbindLocked(this);
+                }
+            }
+
+            for (Map.Entry<ComponentName, ServiceConnection> entry : disconnected.entrySet()) {
+                entry.getValue().onServiceDisconnected(entry.getKey());
+            }
+        }
+    }
+}
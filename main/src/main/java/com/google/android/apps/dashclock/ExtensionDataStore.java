@@ -0,0 +1,478 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
+
+/**
+ * Write-behind cache for the latest {@link ExtensionData} of each active extension, and storage
+ * for each extension's {@link ExtensionManager.ExtensionRenderOptions}.
+ *
+ * <p>
+ * All data records live in memory and are persisted together in a compact, versioned binary
+ * snapshot file (see {@link #SNAPSHOT_VERSION}), which is memory-mapped and parsed in a single
+ * pass when the store is created. Changes are coalesced and the snapshot is rewritten on a
+ * background thread once changes have been quiet for {@link #FLUSH_QUIET_MILLIS}, and never later
+ * than {@link #FLUSH_MAX_DELAY_MILLIS} after the first unwritten change. Call {@link #flush()} to
+ * force pending changes to disk (e.g. before the containing service is destroyed). A snapshot that
+ * can't be parsed is discarded; it only holds data that extensions will publish again.
+ *
+ * <p>
+ * Render options are user configuration, so they're kept out of the snapshot and committed
+ * right away to the <code>extension_render_options</code> shared preferences.
+ *
+ * <p>
+ * On first launch, data cached by older versions in the <code>extension_data</code> shared
+ * preferences is migrated into the snapshot.
+ */
+class ExtensionDataStore {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionDataStore.class);
+
+    private static final String SNAPSHOT_FILE_NAME = "extension_data.snapshot";
+
+    private static final String PREFS_EXTENSION_RENDER_OPTIONS = "extension_render_options";
+
+    // Legacy (JSON in shared preferences) storage, only read during migration.
+    private static final String LEGACY_PREFS_EXTENSION_DATA = "extension_data";
+
+    private static final int SNAPSHOT_MAGIC = 0x44436b53; // 'DCkS'
+
+    /**
+     * Since the snapshot format may evolve, every snapshot starts with its format version. Bump
+     * this when changing the record layout, and read older versions that have shipped.
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * How long to wait after the most recent change before writing pending changes.
+     */
+    private static final int FLUSH_QUIET_MILLIS = 2 * SECONDS_MILLIS;
+
+    /**
+     * The maximum amount of time a change can stay unwritten while changes keep arriving.
+     */
+    private static final int FLUSH_MAX_DELAY_MILLIS = 10 * SECONDS_MILLIS;
+
+    private final Context mContext;
+    private final File mSnapshotFile;
+    private final SharedPreferences mRenderOptionsPreferences;
+    private final Handler mFlushHandler;
+
+    /**
+     * Serializes snapshot writes.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Guards {@link #mRecords}, {@link #mDirty} and {@link #mFirstDirtyUptime}.
+     */
+    private final Object mLock = new Object();
+
+    private final Map<ComponentName, Record> mRecords = new HashMap<ComponentName, Record>();
+    private boolean mDirty;
+    private long mFirstDirtyUptime;
+
+    public ExtensionDataStore(Context context) {
+        mContext = context;
+        mSnapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+        mRenderOptionsPreferences = context.getSharedPreferences(
+                PREFS_EXTENSION_RENDER_OPTIONS, 0);
+
+        HandlerThread thread = new HandlerThread("ExtensionDataStore",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFlushHandler = new Handler(thread.getLooper());
+
+        long startUptime = SystemClock.uptimeMillis();
+        if (mSnapshotFile.exists()) {
+            readSnapshot();
+        } else {
+            migrateLegacyPreferences();
+        }
+        LOGD(TAG, "Loaded cached data for " + mRecords.size() + " extension(s) in "
+                + (SystemClock.uptimeMillis() - startUptime) + "ms.");
+    }
+
+    /**
+     * Returns the most recently stored data for the given extension, including changes that
+     * haven't been written yet. Never returns null.
+     */
+    public ExtensionData loadData(ComponentName componentName) {
+        synchronized (mLock) {
+            Record record = mRecords.get(componentName);
+            return (record != null && record.data != null) ? record.data : new ExtensionData();
+        }
+    }
+
+    /**
+     * Returns the most recently stored render options for the given extension. Never returns
+     * null.
+     */
+    public ExtensionManager.ExtensionRenderOptions loadRenderOptions(
+            ComponentName componentName) {
+        ExtensionManager.ExtensionRenderOptions renderOptions
+                = new ExtensionManager.ExtensionRenderOptions();
+        String val = mRenderOptionsPreferences.getString(componentName.flattenToString(), null);
+        if (!TextUtils.isEmpty(val)) {
+            try {
+                renderOptions.deserialize((JSONObject) new JSONTokener(val).nextValue());
+            } catch (JSONException e) {
+                LOGE(TAG, "Error loading extension options for " + componentName + ".", e);
+            }
+        }
+        return renderOptions;
+    }
+
+    /**
+     * Schedules the given data to be stored for the given extension. The data object must not be
+     * modified after this call. Data with a sequence number lower than that of previously stored
+     * data for the extension is ignored, so concurrent callers can't store stale data.
+     */
+    public void putData(ComponentName componentName, ExtensionData data, long sequence) {
+        synchronized (mLock) {
+            Record record = mRecords.get(componentName);
+            if (record != null && sequence < record.sequence) {
+                return;
+            }
+
+            mRecords.put(componentName, new Record(data, sequence));
+            markDirty();
+        }
+    }
+
+    /**
+     * Stores the given render options for the given extension right away.
+     */
+    public void putRenderOptions(ComponentName componentName,
+            ExtensionManager.ExtensionRenderOptions renderOptions) {
+        String key = componentName.flattenToString();
+        try {
+            String serialized = renderOptions.serialize().toString();
+            if (serialized.equals(mRenderOptionsPreferences.getString(key, null))) {
+                return;
+            }
+            mRenderOptionsPreferences.edit().putString(key, serialized).commit();
+        } catch (JSONException e) {
+            LOGE(TAG, "Error storing extension options for " + componentName + ".", e);
+        }
+    }
+
+    /**
+     * Removes everything stored for the given extension. Render options are removed right away,
+     * cached data is removed from the snapshot with the next write.
+     */
+    public void remove(ComponentName componentName) {
+        if (mRenderOptionsPreferences.contains(componentName.flattenToString())) {
+            mRenderOptionsPreferences.edit().remove(componentName.flattenToString()).commit();
+        }
+
+        synchronized (mLock) {
+            if (mRecords.remove(componentName) != null) {
+                markDirty();
+            }
+        }
+    }
+
+    /**
+     * Synchronously writes all pending changes. Can be called from any thread.
+     */
+    public void flush() {
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        writeSnapshot();
+    }
+
+    private void markDirty() {
+        long now = SystemClock.uptimeMillis();
+        if (!mDirty) {
+            mDirty = true;
+            mFirstDirtyUptime = now;
+        }
+
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.postAtTime(mFlushRunnable, Math.min(
+                now + FLUSH_QUIET_MILLIS,
+                mFirstDirtyUptime + FLUSH_MAX_DELAY_MILLIS));
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeSnapshot();
+        }
+    };
+
+    private void readSnapshot() {
+        RandomAccessFile file = null;
+        boolean discard = false;
+        try {
+            file = new RandomAccessFile(mSnapshotFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            if (magic != SNAPSHOT_MAGIC || version != SNAPSHOT_VERSION) {
+                LOGW(TAG, "Extension data snapshot has an unknown format (version " + version
+                        + "); discarding it.");
+                discard = true;
+                return;
+            }
+
+            Map<ComponentName, Record> records = new HashMap<ComponentName, Record>();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String cnString = readString(buffer);
+                ComponentName cn = (cnString != null)
+                        ? ComponentName.unflattenFromString(cnString) : null;
+                ExtensionData data = readExtensionData(buffer);
+                if (cn != null) {
+                    records.put(cn, new Record(data, 0));
+                }
+            }
+
+            synchronized (mLock) {
+                mRecords.putAll(records);
+            }
+
+        } catch (IOException e) {
+            LOGE(TAG, "Error reading extension data snapshot.", e);
+        } catch (BufferUnderflowException e) {
+            LOGE(TAG, "Extension data snapshot is truncated; discarding it.", e);
+            discard = true;
+        } catch (RuntimeException e) {
+            // Anything else means the snapshot is corrupt. Extensions will publish their data
+            // again, so don't let a bad cache keep the app from starting.
+            LOGE(TAG, "Extension data snapshot is corrupt; discarding it.", e);
+            discard = true;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            if (discard && !mSnapshotFile.delete()) {
+                LOGW(TAG, "Couldn't delete " + mSnapshotFile + ".");
+            }
+        }
+    }
+
+    private void writeSnapshot() {
+        synchronized (mWriteLock) {
+            Map<ComponentName, Record> records;
+            synchronized (mLock) {
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                records = new HashMap<ComponentName, Record>(mRecords);
+            }
+
+            File tempFile = new File(mSnapshotFile.getPath() + ".tmp");
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(records.size());
+                for (Map.Entry<ComponentName, Record> entry : records.entrySet()) {
+                    Record record = entry.getValue();
+                    writeString(out, entry.getKey().flattenToString());
+                    writeExtensionData(out, record.data);
+                }
+                out.flush();
+
+                FileOutputStream fos = new FileOutputStream(tempFile);
+                try {
+                    fos.write(bytes.toByteArray());
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+
+                if (!tempFile.renameTo(mSnapshotFile)) {
+                    throw new IOException("Couldn't replace " + mSnapshotFile);
+                }
+
+                LOGD(TAG, "Wrote cached data for " + records.size() + " extension(s), "
+                        + bytes.size() + " bytes.");
+
+            } catch (IOException e) {
+                LOGE(TAG, "Error writing extension data snapshot.", e);
+                tempFile.delete();
+                synchronized (mLock) {
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    private static ExtensionData readExtensionData(ByteBuffer in) {
+        ExtensionData data = new ExtensionData()
+                .visible(in.get() != 0)
+                .icon(in.getInt());
+        String iconUri = readString(in);
+        data.iconUri(TextUtils.isEmpty(iconUri) ? null : Uri.parse(iconUri));
+        data.status(readString(in));
+        data.expandedTitle(readString(in));
+        data.expandedBody(readString(in));
+        String clickIntent = readString(in);
+        if (!TextUtils.isEmpty(clickIntent)) {
+            try {
+                data.clickIntent(Intent.parseUri(clickIntent, 0));
+            } catch (URISyntaxException ignored) {
+            }
+        }
+        data.contentDescription(readString(in));
+        data.expiresAt(in.getLong());
+        return data;
+    }
+
+    private static void writeExtensionData(DataOutputStream out, ExtensionData data)
+            throws IOException {
+        out.writeBoolean(data.visible());
+        out.writeInt(data.icon());
+        writeString(out, (data.iconUri() == null) ? null : data.iconUri().toString());
+        writeString(out, data.status());
+        writeString(out, data.expandedTitle());
+        writeString(out, data.expandedBody());
+        writeString(out, (data.clickIntent() == null) ? null : data.clickIntent().toUri(0));
+        writeString(out, data.contentDescription());
+        out.writeLong(data.expiresAt());
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > in.remaining()) {
+            // Don't trust the length of a corrupt string with an allocation.
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Imports data cached as JSON in shared preferences by older versions of the app, writes it
+     * out as a snapshot and then clears the old preferences. Render options are still stored in
+     * shared preferences, so they stay where they are.
+     */
+    private void migrateLegacyPreferences() {
+        final SharedPreferences valuesPreferences = mContext.getSharedPreferences(
+                LEGACY_PREFS_EXTENSION_DATA, 0);
+
+        Map<ComponentName, Record> records = new HashMap<ComponentName, Record>();
+        for (Map.Entry<String, ?> entry : valuesPreferences.getAll().entrySet()) {
+            ComponentName cn = ComponentName.unflattenFromString(entry.getKey());
+            Object val = entry.getValue();
+            if (cn == null || !(val instanceof String) || TextUtils.isEmpty((String) val)) {
+                continue;
+            }
+
+            try {
+                ExtensionData data = new ExtensionData();
+                data.deserialize((JSONObject) new JSONTokener((String) val).nextValue());
+                records.put(cn, new Record(data, 0));
+            } catch (JSONException e) {
+                LOGE(TAG, "Error migrating extension data cache for " + cn + ".", e);
+            }
+        }
+
+        synchronized (mLock) {
+            mRecords.putAll(records);
+            mDirty = true;
+        }
+
+        LOGD(TAG, "Migrating cached data for " + records.size() + " extension(s) to snapshot.");
+        mFlushHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+                if (mSnapshotFile.exists()) {
+                    valuesPreferences.edit().clear().commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * Immutable cached data for a single extension. The sequence number of the data is only
+     * tracked in memory.
+     */
+    private static class Record {
+        final ExtensionData data;
+        final long sequence;
+
+        Record(ExtensionData data, long sequence) {
+            this.data = data;
+            this.sequence = sequence;
+        }
+    }
+}
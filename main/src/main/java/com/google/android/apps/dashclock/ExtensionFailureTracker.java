@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+import static com.google.android.apps.dashclock.Utils.MINUTES_MILLIS;
+import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
+
+/**
+ * Keeps track of extensions that repeatedly crash or fail to handle operations. Each consecutive
+ * failure doubles the time before the host tries to bind to the extension again (with some
+ * jitter, up to {@link #MAX_BACKOFF_MILLIS}). After {@link #QUARANTINE_FAILURE_COUNT}
+ * consecutive failures the extension is quarantined: the host stops binding to it until its
+ * package is updated (see {@link #clearPackage(String)}). Quarantine survives process restarts.
+ *
+ * <p>All methods are thread-safe.
+ */
+class ExtensionFailureTracker {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionFailureTracker.class);
+
+    private static final String PREF_NAME = "extension_quarantine";
+
+    private static final long BASE_BACKOFF_MILLIS = SECONDS_MILLIS;
+    private static final long MAX_BACKOFF_MILLIS = 5 * MINUTES_MILLIS;
+    private static final float BACKOFF_JITTER = 0.25f;
+
+    /**
+     * Failures further apart than this aren't considered consecutive, so that extensions that
+     * are occasionally killed (e.g. by the low memory killer) don't end up quarantined.
+     */
+    private static final long FAILURE_WINDOW_MILLIS = 10 * MINUTES_MILLIS;
+
+    static final int QUARANTINE_FAILURE_COUNT = 5;
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+
+    /**
+     * In-memory failure state for extensions that have failed recently. Guarded by this object's
+     * monitor.
+     */
+    private final Map<ComponentName, FailureState> mFailures
+            = new HashMap<ComponentName, FailureState>();
+
+    public ExtensionFailureTracker(Context context) {
+        mPrefs = context.getSharedPreferences(PREF_NAME, 0);
+    }
+
+    /**
+     * Records a failure (a crash, or an operation that couldn't be delivered) for the given
+     * extension, quarantining it if it has failed too many times in a row.
+     *
+     * @return Whether the extension is now quarantined.
+     */
+    public synchronized boolean onFailure(ComponentName cn) {
+        long now = SystemClock.elapsedRealtime();
+        FailureState state = mFailures.get(cn);
+        if (state == null || now - state.lastFailureElapsed > FAILURE_WINDOW_MILLIS) {
+            state = new FailureState();
+            mFailures.put(cn, state);
+        }
+
+        ++state.consecutiveFailures;
+        state.lastFailureElapsed = now;
+
+        long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(state.consecutiveFailures - 1, 20));
+        backoff += (long) (backoff * BACKOFF_JITTER * (2 * mRandom.nextFloat() - 1));
+        state.retryAtElapsed = now + backoff;
+
+        if (state.consecutiveFailures >= QUARANTINE_FAILURE_COUNT && !isQuarantined(cn)) {
+            LOGW(TAG, "Extension " + cn + " failed " + state.consecutiveFailures
+                    + " times in a row; quarantining it until its package is updated.");
+            mPrefs.edit().putLong(cn.flattenToString(), System.currentTimeMillis()).apply();
+            return true;
+        }
+
+        LOGD(TAG, "Extension " + cn + " failed (" + state.consecutiveFailures
+                + " in a row); backing off for " + backoff + " ms.");
+        return isQuarantined(cn);
+    }
+
+    /**
+     * Records that the given extension is working (e.g. it published an update), resetting its
+     * failure count.
+     */
+    public synchronized void onSuccess(ComponentName cn) {
+        mFailures.remove(cn);
+    }
+
+    /**
+     * Returns how long to wait before binding to the given extension again, or 0 if it can be
+     * bound now.
+     */
+    public synchronized long getRetryDelay(ComponentName cn) {
+        FailureState state = mFailures.get(cn);
+        if (state == null) {
+            return 0;
+        }
+
+        return Math.max(0, state.retryAtElapsed - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns whether the host should stop binding to the given extension.
+     */
+    public synchronized boolean isQuarantined(ComponentName cn) {
+        return mPrefs.contains(cn.flattenToString());
+    }
+
+    /**
+     * Clears failure and quarantine state for all extensions in the given package.
+     *
+     * @return Whether any extension was quarantined.
+     */
+    public synchronized boolean clearPackage(String packageName) {
+        Iterator<ComponentName> it = mFailures.keySet().iterator();
+        while (it.hasNext()) {
+            if (packageName.equals(it.next().getPackageName())) {
+                it.remove();
+            }
+        }
+
+        boolean cleared = false;
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : mPrefs.getAll().keySet()) {
+            ComponentName cn = ComponentName.unflattenFromString(key);
+            if (cn != null && packageName.equals(cn.getPackageName())) {
+                LOGD(TAG, "Lifting quarantine for extension " + cn + ".");
+                editor.remove(key);
+                cleared = true;
+            }
+        }
+
+        if (cleared) {
+            editor.apply();
+        }
+        return cleared;
+    }
+
+    /**
+     * Clears failure and quarantine state for the given extension, e.g. because the user asked to
+     * try it again.
+     *
+     * @return Whether the extension was quarantined.
+     */
+    public synchronized boolean clear(ComponentName cn) {
+        mFailures.remove(cn);
+        String key = cn.flattenToString();
+        if (!mPrefs.contains(key)) {
+            return false;
+        }
+
+        LOGD(TAG, "Lifting quarantine for extension " + cn + ".");
+        mPrefs.edit().remove(key).apply();
+        return true;
+    }
+
+    private static class FailureState {
+        int consecutiveFailures;
+        long lastFailureElapsed;
+        long retryAtElapsed;
+    }
+}
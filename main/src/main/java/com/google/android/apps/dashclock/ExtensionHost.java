@@ -21,38 +21,48 @@ import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.api.internal.IExtension;
 import com.google.android.apps.dashclock.api.internal.IExtensionHost;
 
-import android.app.Service;
+import net.nurik.roman.dashclock.R;
+
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.util.SparseArray;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
 import static com.google.android.apps.dashclock.LogUtils.LOGE;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
 
 /**
  * The primary local-process endpoint that deals with extensions. Instances of this class are in
@@ -66,7 +76,12 @@ public class ExtensionHost {
     // TODO: this class badly needs inline docs
     private static final String TAG = LogUtils.makeLogTag(ExtensionHost.class);
 
-    private static final int CURRENT_EXTENSION_PROTOCOL_VERSION = 2;
+    private static final int CURRENT_EXTENSION_PROTOCOL_VERSION = 3;
+
+    /**
+     * The protocol version with which extensions can publish delta and multi-record updates.
+     */
+    private static final int PROTOCOL_VERSION_DELTA_UPDATES = 3;
 
     /**
      * The amount of time to wait after something has changed before recognizing it as an individual
@@ -75,31 +90,192 @@ public class ExtensionHost {
      */
     public static final int UPDATE_COLLAPSE_TIME_MILLIS = 500;
 
+    /**
+     * The maximum amount of time that a continuous stream of changes can delay the handling of
+     * an event; see {@link #UPDATE_COLLAPSE_TIME_MILLIS}.
+     */
+    public static final int UPDATE_COLLAPSE_MAX_WAIT_MILLIS = 2000;
+
+    /**
+     * The widest collapse window for content change updates. The window for a given extension and
+     * URI starts at {@link #UPDATE_COLLAPSE_TIME_MILLIS} and widens up to this while the URI is
+     * changing rapidly (e.g. during a sync); see {@link AdaptiveCollapseWindow}.
+     */
+    private static final int MAX_CONTENT_COLLAPSE_TIME_MILLIS = 10000;
+
     private Context mContext;
     private Handler mClientThreadHandler = new Handler();
 
     private ExtensionManager mExtensionManager;
+    private ExtensionFailureTracker mFailureTracker;
 
     private Map<ComponentName, Connection> mExtensionConnections
             = new HashMap<ComponentName, Connection>();
 
+    /**
+     * The active extensions, as of the last call to {@link #establishAndDestroyConnections}.
+     * Idle active extensions may not be connected; see {@link #mIdleCheckRunnable}.
+     */
+    private final Set<ComponentName> mActiveExtensions = new HashSet<ComponentName>();
+
+    private long mIdleUnbindMillis;
+    private long mLazyIdleUnbindMillis;
+    private int mMaxBoundExtensions;
+
+    /**
+     * Statistics on idle unbinding, for {@link #dump(PrintWriter)}. Only accessed on the main
+     * thread.
+     */
+    private int mIdleUnbindCount;
+    private int mRebindCount;
+    private long mTotalUnboundMillis;
+    private final long mCreatedElapsed = SystemClock.elapsedRealtime();
+
+    /**
+     * When each extension that was unbound while idle was unbound, in
+     * {@link SystemClock#elapsedRealtime()} time. Only accessed on the main thread.
+     */
+    private final Map<ComponentName, Long> mIdleUnboundSince = new HashMap<ComponentName, Long>();
+
+    /**
+     * Watches content URIs for all extensions, registering each distinct URI only once.
+     */
+    private ContentObserverRegistry mContentObservers;
+
+    /**
+     * The content URIs each active extension declares in its manifest, as currently subscribed
+     * in {@link #mContentObservers}. Only accessed on the main thread.
+     */
+    private final Map<ComponentName, List<Uri>> mDeclaredUriSubscriptions
+            = new HashMap<ComponentName, List<Uri>>();
+
+    /**
+     * Collapse windows for content change updates, keyed by (extension, URI). Only accessed on
+     * the main thread.
+     */
+    private final Map<Pair<ComponentName, Uri>, AdaptiveCollapseWindow> mContentCollapseWindows
+            = new HashMap<Pair<ComponentName, Uri>, AdaptiveCollapseWindow>();
+
     private final Set<ComponentName> mExtensionsToUpdateWhenScreenOn = new HashSet<ComponentName>();
     private boolean mScreenOnReceiverRegistered = false;
 
+    private static final AtomicInteger sConnectionEpoch = new AtomicInteger();
+
+    /**
+     * Pending collapsed operations, keyed by (extension component name, collapse token).
+     */
+    private final Map<Pair<ComponentName, Object>, CollapsedOperation> mCollapsedOperations
+            = new HashMap<Pair<ComponentName, Object>, CollapsedOperation>();
+
+    /**
+     * The maximum number of threads running extension operations concurrently.
+     */
+    private static final int MAX_OPERATION_THREADS = 4;
+
+    /**
+     * The maximum number of threads obtaining extension binders from channel services
+     * concurrently. Kept apart from {@link #MAX_OPERATION_THREADS}, since each of these can block
+     * for a while waiting on the channel service.
+     */
+    private static final int MAX_CHANNEL_THREADS = 2;
+
+    /**
+     * The maximum number of operations to hold for an extension that isn't connected. Distinct
+     * operations are few (one per update reason, plus initialization), so this is only reached
+     * if something is badly wrong.
+     */
+    private static final int MAX_DEFERRED_OPERATIONS = 16;
+
+    /**
+     * How long to wait before checking again whether an extension that has been unused for long
+     * enough to be unbound, but is still busy, has become idle.
+     */
+    private static final long BUSY_IDLE_RECHECK_MILLIS = 10 * SECONDS_MILLIS;
+
+    /**
+     * Times delayed and collapsed operations; see {@link #mOperationPool} for where they run.
+     */
     private volatile Looper mAsyncLooper;
     private volatile Handler mAsyncHandler;
 
-    public ExtensionHost(Service context) {
+    /**
+     * Runs extension operations. Each connection has its own {@link SerialExecutor} lane on this
+     * pool, so operations for one extension run in order, but a slow extension doesn't hold up
+     * operations for the others.
+     */
+    private ThreadPoolExecutor mOperationPool;
+
+    /**
+     * Obtains extension binders from channel services for {@link #mChannelBindings}.
+     */
+    private ThreadPoolExecutor mChannelPool;
+
+    /**
+     * Bindings to channel services, through which extensions that declare one are reached.
+     */
+    private ExtensionChannelBindings mChannelBindings;
+
+    /**
+     * Requests updates from extensions whose data expired.
+     */
+    private DataExpiryScheduler mDataExpiryScheduler;
+
+    /**
+     * Keeps the device awake until requested updates arrive.
+     */
+    private UpdateRoundTracker mUpdateRounds;
+
+    public ExtensionHost(Context context) {
         mContext = context;
         mExtensionManager = ExtensionManager.getInstance(context);
+        mFailureTracker = mExtensionManager.getFailureTracker();
+        mIdleUnbindMillis = context.getResources().getInteger(
+                R.integer.extension_idle_unbind_seconds) * SECONDS_MILLIS;
+        mLazyIdleUnbindMillis = context.getResources().getInteger(
+                R.integer.lazy_extension_idle_unbind_seconds) * SECONDS_MILLIS;
+        mMaxBoundExtensions = context.getResources().getInteger(R.integer.max_bound_extensions);
         mExtensionManager.addOnChangeListener(mChangeListener);
 
+        mContentObservers = new ContentObserverRegistry(context.getContentResolver(),
+                mClientThreadHandler, new ContentObserverRegistry.Callback() {
+            @Override
+            public void onContentChanged(Uri uri, Set<ComponentName> subscribers) {
+                for (ComponentName cn : subscribers) {
+                    execute(cn, UPDATE_OPERATIONS.get(
+                                    DashClockExtension.UPDATE_REASON_CONTENT_CHANGED),
+                            getContentCollapseTime(cn, uri),
+                            DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
+                }
+            }
+        });
+
+        mDataExpiryScheduler = new DataExpiryScheduler(context,
+                new DataExpiryScheduler.Callback() {
+            @Override
+            public void onDataExpired(Set<ComponentName> expired) {
+                // Stop showing the stale data, and ask for fresh data.
+                mExtensionManager.onExtensionDataExpired(expired);
+                for (ComponentName cn : expired) {
+                    execute(cn, UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_EXPIRED),
+                            UPDATE_COLLAPSE_TIME_MILLIS,
+                            DashClockExtension.UPDATE_REASON_EXPIRED);
+                }
+            }
+        });
+        mDataExpiryScheduler.update(mExtensionManager.getActiveExtensionsSnapshot());
+        mUpdateRounds = new UpdateRoundTracker(context);
+
         HandlerThread thread = new HandlerThread("ExtensionHost");
         thread.start();
         mAsyncLooper = thread.getLooper();
         mAsyncHandler = new Handler(mAsyncLooper);
 
-        mChangeListener.onExtensionsChanged(null);
+        mOperationPool = newWorkerPool(MAX_OPERATION_THREADS, "ExtensionHost");
+        mChannelPool = newWorkerPool(MAX_CHANNEL_THREADS, "ExtensionChannels");
+        mChannelBindings = new ExtensionChannelBindings(context, mClientThreadHandler,
+                mChannelPool);
+
+        establishAndDestroyConnections(mExtensionManager.getActiveExtensionNames());
         mExtensionManager.cleanupExtensions();
 
         LOGD(TAG, "ExtensionHost initialized.");
@@ -107,12 +283,41 @@ public class ExtensionHost {
 
     public void destroy() {
         mExtensionManager.removeOnChangeListener(mChangeListener);
+        mDataExpiryScheduler.destroy();
+        mUpdateRounds.destroy();
         if (mScreenOnReceiverRegistered) {
             mContext.unregisterReceiver(mScreenOnReceiver);
             mScreenOnReceiverRegistered = false;
         }
+        mClientThreadHandler.removeCallbacksAndMessages(null);
         establishAndDestroyConnections(new ArrayList<ComponentName>());
         mAsyncLooper.quit();
+        mOperationPool.shutdown();
+        mChannelPool.shutdown();
+    }
+
+    /**
+     * Creates a pool of background priority threads, which exit after being idle for a while.
+     */
+    private static ThreadPoolExecutor newWorkerPool(int threadCount, final String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threadCount, threadCount,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + " #" + mCount.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     private void establishAndDestroyConnections(List<ComponentName> newExtensionNames) {
@@ -125,7 +330,13 @@ public class ExtensionHost {
         connectedSet.addAll(mExtensionConnections.keySet());
 
         for (final ComponentName cn : activeSet) {
-            if (connectedSet.contains(cn)) {
+            if (connectedSet.contains(cn) || mActiveExtensions.contains(cn)) {
+                // Already connected, or was unbound while idle and will be rebound on demand.
+                continue;
+            }
+
+            if (mFailureTracker.isQuarantined(cn)) {
+                LOGW(TAG, "Not binding to quarantined extension " + cn + ".");
                 continue;
             }
 
@@ -148,6 +359,282 @@ public class ExtensionHost {
             destroyConnection(conn);
             mExtensionConnections.remove(cn);
         }
+
+        mActiveExtensions.clear();
+        mActiveExtensions.addAll(activeSet);
+        mIdleUnboundSince.keySet().retainAll(mActiveExtensions);
+        updateDeclaredUriObservers();
+        enforceBoundExtensionsLimit();
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Subscribes to the content URIs declared by active extensions, and unsubscribes from those of
+     * extensions that are no longer active.
+     */
+    private void updateDeclaredUriObservers() {
+        Iterator<Map.Entry<ComponentName, List<Uri>>> it
+                = mDeclaredUriSubscriptions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ComponentName, List<Uri>> entry = it.next();
+            if (!mActiveExtensions.contains(entry.getKey())) {
+                for (Uri uri : entry.getValue()) {
+                    mContentObservers.unsubscribe(uri, entry.getKey());
+                }
+                it.remove();
+            }
+        }
+
+        Iterator<Pair<ComponentName, Uri>> windowIt = mContentCollapseWindows.keySet().iterator();
+        while (windowIt.hasNext()) {
+            if (!mActiveExtensions.contains(windowIt.next().first)) {
+                windowIt.remove();
+            }
+        }
+
+        for (ComponentName cn : mActiveExtensions) {
+            if (mDeclaredUriSubscriptions.containsKey(cn)) {
+                continue;
+            }
+
+            List<Uri> uris = getDeclaredWatchContentUris(cn);
+            for (Uri uri : uris) {
+                mContentObservers.subscribe(uri, cn);
+            }
+            mDeclaredUriSubscriptions.put(cn, uris);
+        }
+    }
+
+    /**
+     * Records a change to the given URI and returns how long to collapse the resulting update
+     * for the given extension, based on how often the URI has been changing.
+     */
+    private int getContentCollapseTime(ComponentName cn, Uri uri) {
+        Pair<ComponentName, Uri> key = new Pair<ComponentName, Uri>(cn, uri);
+        AdaptiveCollapseWindow window = mContentCollapseWindows.get(key);
+        if (window == null) {
+            window = new AdaptiveCollapseWindow(UPDATE_COLLAPSE_TIME_MILLIS,
+                    MAX_CONTENT_COLLAPSE_TIME_MILLIS);
+            mContentCollapseWindows.put(key, window);
+        }
+
+        long previousWindowMillis = window.getWindowMillis();
+        int windowMillis = (int) window.onEvent();
+        if (windowMillis != previousWindowMillis) {
+            LOGD(TAG, "Collapse window for " + cn.flattenToShortString() + " on " + uri
+                    + " is now " + window + ".");
+        }
+        return windowMillis;
+    }
+
+    private List<Uri> getDeclaredWatchContentUris(ComponentName cn) {
+        ExtensionManager.ExtensionWithData ewd
+                = mExtensionManager.getActiveExtensionsSnapshot().get(cn);
+        return (ewd != null) ? ewd.listing.watchContentUris : Collections.<Uri>emptyList();
+    }
+
+    private int getProtocolVersion(ComponentName cn) {
+        ExtensionManager.ExtensionWithData ewd
+                = mExtensionManager.getActiveExtensionsSnapshot().get(cn);
+        return (ewd != null) ? ewd.listing.protocolVersion : 0;
+    }
+
+    private ComponentName getChannelService(ComponentName cn) {
+        ExtensionManager.ExtensionWithData ewd
+                = mExtensionManager.getActiveExtensionsSnapshot().get(cn);
+        return (ewd != null) ? ewd.listing.channelService : null;
+    }
+
+    /**
+     * Schedules {@link #mIdleCheckRunnable} for the earliest time at which a bound extension may
+     * be idle for long enough to be unbound, or cancels it if no bound extension can be. Must be
+     * called whenever a connection is added, or stops watching content.
+     */
+    private void scheduleIdleCheck() {
+        mClientThreadHandler.removeCallbacks(mIdleCheckRunnable);
+        long now = SystemClock.elapsedRealtime();
+        long nextCheck = Long.MAX_VALUE;
+        for (Connection conn : mExtensionConnections.values()) {
+            if (conn.watchingContent) {
+                continue;
+            }
+
+            long idleAt = conn.lastUsedElapsed + getIdleUnbindMillis(conn);
+            if (isAwaitingReply(conn)) {
+                idleAt = Math.max(idleAt,
+                        conn.lastDispatchElapsed + UpdateRoundTracker.ROUND_DEADLINE_MILLIS);
+            }
+            if (idleAt <= now) {
+                // Unused for long enough, but still busy with operations (or connecting).
+                idleAt = now + BUSY_IDLE_RECHECK_MILLIS;
+            }
+            nextCheck = Math.min(nextCheck, idleAt);
+        }
+
+        if (nextCheck != Long.MAX_VALUE) {
+            mClientThreadHandler.postDelayed(mIdleCheckRunnable, nextCheck - now);
+        }
+    }
+
+    private long getIdleUnbindMillis(Connection conn) {
+        return conn.lazy ? mLazyIdleUnbindMillis : mIdleUnbindMillis;
+    }
+
+    /**
+     * Unbinds extensions that have been idle for {@link #mIdleUnbindMillis}, so that their
+     * processes can be reclaimed. They're rebound when they're next sent an operation. Lazy
+     * extensions, whose content URIs the host watches without binding, are unbound sooner.
+     */
+    private final Runnable mIdleCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            for (Connection conn : new ArrayList<Connection>(mExtensionConnections.values())) {
+                if (isIdle(conn) && now - conn.lastUsedElapsed >= getIdleUnbindMillis(conn)) {
+                    unbindIdleConnection(conn);
+                }
+            }
+            scheduleIdleCheck();
+        }
+    };
+
+    /**
+     * Unbinds the least recently used idle extensions while more than {@link #mMaxBoundExtensions}
+     * are bound.
+     */
+    private void enforceBoundExtensionsLimit() {
+        if (mExtensionConnections.size() <= mMaxBoundExtensions) {
+            return;
+        }
+
+        List<Connection> idleConnections = new ArrayList<Connection>();
+        for (Connection conn : mExtensionConnections.values()) {
+            if (isIdle(conn)) {
+                idleConnections.add(conn);
+            }
+        }
+
+        Collections.sort(idleConnections, new Comparator<Connection>() {
+            @Override
+            public int compare(Connection lhs, Connection rhs) {
+                return (lhs.lastUsedElapsed < rhs.lastUsedElapsed) ? -1
+                        : ((lhs.lastUsedElapsed == rhs.lastUsedElapsed) ? 0 : 1);
+            }
+        });
+
+        for (Connection conn : idleConnections) {
+            if (mExtensionConnections.size() <= mMaxBoundExtensions) {
+                break;
+            }
+            unbindIdleConnection(conn);
+        }
+    }
+
+    /**
+     * Returns whether the given connection can be unbound without losing anything: it's
+     * connected, has no pending or running operations, isn't watching content, and isn't still
+     * working on an operation it was sent. Since operations are oneway calls, an extension
+     * may keep working (e.g. waiting for a location fix) after they return; it's given until it
+     * answers or the update round deadline passes.
+     */
+    private boolean isIdle(Connection conn) {
+        if (!conn.ready || conn.watchingContent || conn.deferredOps.size() > 0
+                || !conn.lane.isIdle() || isAwaitingReply(conn)) {
+            return false;
+        }
+
+        synchronized (mCollapsedOperations) {
+            for (Map.Entry<Pair<ComponentName, Object>, CollapsedOperation> entry
+                    : mCollapsedOperations.entrySet()) {
+                if (conn.componentName.equals(entry.getKey().first)
+                        && entry.getValue().scheduler.isPending()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void unbindIdleConnection(Connection conn) {
+        destroyConnection(conn);
+        mExtensionConnections.remove(conn.componentName);
+        mIdleUnboundSince.put(conn.componentName, SystemClock.elapsedRealtime());
+        ++mIdleUnbindCount;
+        LOGD(TAG, "Unbound idle extension " + conn.componentName + "; "
+                + mExtensionConnections.size() + " of " + mActiveExtensions.size()
+                + " active extension(s) still bound.");
+    }
+
+    /**
+     * Records that the given extension is bound again, ending any time it spent unbound while
+     * idle.
+     */
+    private void onRebound(ComponentName cn) {
+        Long unboundSince = mIdleUnboundSince.remove(cn);
+        if (unboundSince != null) {
+            mTotalUnboundMillis += SystemClock.elapsedRealtime() - unboundSince;
+            ++mRebindCount;
+        }
+    }
+
+    /**
+     * Writes a report of how many extensions are bound and how much time active extensions have
+     * spent unbound while idle, i.e. without a resident process on the host's behalf.
+     */
+    public void dump(PrintWriter writer) {
+        long now = SystemClock.elapsedRealtime();
+        long unboundMillis = mTotalUnboundMillis;
+        for (Map.Entry<ComponentName, Long> entry : mIdleUnboundSince.entrySet()) {
+            if (mActiveExtensions.contains(entry.getKey())) {
+                unboundMillis += now - entry.getValue();
+            }
+        }
+
+        writer.println("Extension bindings:");
+        writer.println("  " + mExtensionConnections.size() + " of " + mActiveExtensions.size()
+                + " active extension(s) bound, " + mChannelBindings.getBindingCount()
+                + " channel service(s) bound");
+        writer.println("  " + mIdleUnbindCount + " idle unbind(s), " + mRebindCount
+                + " rebind(s) on demand");
+        writer.println("  " + (unboundMillis / SECONDS_MILLIS) + " extension-second(s) unbound"
+                + " while idle, over " + ((now - mCreatedElapsed) / SECONDS_MILLIS)
+                + " second(s) of uptime");
+        for (ComponentName cn : mActiveExtensions) {
+            String state;
+            Long unboundSince = mIdleUnboundSince.get(cn);
+            Connection conn = mExtensionConnections.get(cn);
+            if (conn != null) {
+                DeferredOperationQueue deferredOps = conn.deferredOps;
+                state = "bound, " + deferredOps.getAddedCount() + " operation(s) deferred, "
+                        + deferredOps.getCollapsedCount() + " collapsed, "
+                        + deferredOps.getDroppedCount() + " dropped";
+            } else if (unboundSince != null) {
+                state = "unbound while idle for " + ((now - unboundSince) / SECONDS_MILLIS) + " s";
+            } else {
+                state = "unbound";
+            }
+            writer.println("    " + cn.flattenToShortString() + ": " + state);
+        }
+
+        writer.println("Content observers:");
+        writer.println("  " + mContentObservers.getObservedUriCount() + " URI(s) observed");
+        for (Map.Entry<Uri, Integer> entry
+                : mContentObservers.getNotificationCounts().entrySet()) {
+            writer.println("    " + entry.getKey() + ": " + entry.getValue()
+                    + " notification(s)");
+        }
+        for (Map.Entry<Pair<ComponentName, Uri>, AdaptiveCollapseWindow> entry
+                : mContentCollapseWindows.entrySet()) {
+            AdaptiveCollapseWindow window = entry.getValue();
+            writer.println("    " + entry.getKey().first.flattenToShortString() + " on "
+                    + entry.getKey().second + ": collapsing for " + window.getWindowMillis()
+                    + " ms, " + Math.round(window.getAverageIntervalMillis())
+                    + " ms between changes on average");
+        }
+
+        writer.println("Data expiry:");
+        writer.println("  " + mDataExpiryScheduler.getExpiredCount()
+                + " extension data expiry(ies) handled");
     }
 
     private Connection createConnection(final ComponentName cn, final boolean isReconnect) {
@@ -155,31 +642,38 @@ public class ExtensionHost {
 
         final Connection conn = new Connection();
         conn.componentName = cn;
-        conn.contentObserver = new ContentObserver(mClientThreadHandler) {
-            @Override
-            public void onChange(boolean selfChange) {
-                execute(conn.componentName,
-                        UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED),
-                        UPDATE_COLLAPSE_TIME_MILLIS,
-                        DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
-            }
-        };
+        conn.epoch = sConnectionEpoch.incrementAndGet();
+        conn.declaredWatchContentUris = getDeclaredWatchContentUris(cn);
+        conn.protocolVersion = getProtocolVersion(cn);
+        conn.channelService = getChannelService(cn);
+        conn.lazy = !conn.declaredWatchContentUris.isEmpty();
+        conn.lane = new SerialExecutor(cn.flattenToShortString(), mOperationPool);
+        conn.deferredOps = new DeferredOperationQueue(cn.flattenToShortString(),
+                MAX_DEFERRED_OPERATIONS);
+        conn.watchedContentUris = new HashSet<Uri>();
         conn.hostInterface = makeHostInterface(conn);
         conn.serviceConnection = new ServiceConnection() {
             @Override
             public void onServiceConnected(final ComponentName componentName, IBinder iBinder) {
                 conn.ready = true;
                 conn.binder = IExtension.Stub.asInterface(iBinder);
+                conn.failureCounted.set(false);
 
                 // Initialize the service
                 execute(conn, new Operation() {
                     @Override
                     public void run(IExtension extension) throws RemoteException {
-                        // Note that this is protected from ANRs since it runs in the
-                        // AsyncHandler thread. Also, since this is a 'oneway' call,
+                        // Note that this is protected from ANRs since it runs on an
+                        // operation thread. Also, since this is a 'oneway' call,
                         // when used with remote extensions, this call does not block.
                         try {
                             extension.onInitialize(conn.hostInterface, isReconnect);
+                            if (conn.protocolVersion >= PROTOCOL_VERSION_DELTA_UPDATES) {
+                                // Lets the extension switch to delta updates. Sent after
+                                // onInitialize, which resets the extension's update state.
+                                extension.onHostProtocolVersion(
+                                        CURRENT_EXTENSION_PROTOCOL_VERSION);
+                            }
                         } catch (SecurityException e) {
                             LOGE(TAG, "Error initializing extension "
                                     + componentName.toString(), e);
@@ -196,42 +690,66 @@ public class ExtensionHost {
 
                 // Execute operations that were deferred until the service was available.
                 // TODO: handle service disruptions that occur here
-                synchronized (conn.deferredOps) {
-                    if (conn.ready) {
-                        Set<Object> processedCollapsedTokens = new HashSet<Object>();
-                        Iterator<Pair<Object, Operation>> it = conn.deferredOps.iterator();
-                        while (it.hasNext()) {
-                            Pair<Object, Operation> op = it.next();
-                            if (op.first != null) {
-                                if (processedCollapsedTokens.contains(op.first)) {
-                                    // An operation with this collapse token has already been
-                                    // processed; skip this one.
-                                    continue;
-                                }
-
-                                processedCollapsedTokens.add(op.first);
-                            }
-                            execute(conn, op.second, 0, null);
-                            it.remove();
-                        }
+                if (conn.ready) {
+                    if (conn.deferredOps.size() > 0) {
+                        LOGD(TAG, "Executing deferred operations for " + conn.componentName
+                                + " (" + conn.deferredOps + ").");
+                    }
+                    for (Operation op : conn.deferredOps.drain()) {
+                        execute(conn, op, 0, null);
                     }
                 }
             }
 
             @Override
             public void onServiceDisconnected(final ComponentName componentName) {
-                conn.serviceConnection = null;
                 conn.binder = null;
                 conn.ready = false;
-                mClientThreadHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mExtensionConnections.remove(componentName);
-                    }
-                });
+                if (conn.serviceConnection != this) {
+                    // The connection was already destroyed.
+                    return;
+                }
+
+                // The extension's process died. Only count this as a failure if it died while
+                // handling an operation; processes of idle extensions are routinely killed to
+                // reclaim memory (and all extensions behind a channel service die with it).
+                if (isAwaitingReply(conn)) {
+                    countFailure(conn);
+                } else {
+                    LOGD(TAG, "Extension " + componentName + " died while idle.");
+                }
+
+                // Unbind rather than letting the system restart the extension and replay the
+                // deferred operations (possibly including the one that crashed it) on this
+                // connection. The extension is bound again when it's next sent an operation,
+                // after the failure tracker's retry delay.
+                boolean watchingContent = conn.watchingContent;
+                if (conn.deferredOps.size() > 0) {
+                    LOGD(TAG, "Dropping deferred operations for " + componentName + " ("
+                            + conn.deferredOps + ").");
+                }
+                destroyConnection(conn);
+                if (mExtensionConnections.get(componentName) == conn) {
+                    mExtensionConnections.remove(componentName);
+                }
+
+                if (watchingContent) {
+                    // The extension's content URI watches went with the connection; reconnect
+                    // so that it can register them again.
+                    scheduleReconnect(componentName);
+                }
             }
         };
 
+        if (conn.channelService != null) {
+            if (!mChannelBindings.attach(conn.channelService, cn, conn.serviceConnection)) {
+                LOGE(TAG, "Error binding to extension " + cn.flattenToShortString()
+                        + " through " + conn.channelService.flattenToShortString());
+                return null;
+            }
+            return conn;
+        }
+
         try {
             if (!mContext.bindService(new Intent().setComponent(cn), conn.serviceConnection,
                     Context.BIND_AUTO_CREATE)) {
@@ -254,30 +772,141 @@ public class ExtensionHost {
                     data = new ExtensionData();
                 }
 
-                // TODO: this needs to be thread-safe
-                LOGD(TAG, "publishUpdate received for extension " + conn.componentName);
-                mExtensionManager.updateExtensionData(conn.componentName, data);
+                conn.lastPublishedData = data;
+                onUpdatePublished(data, "publishUpdate");
+            }
+
+            @Override
+            public void publishUpdateDelta(ExtensionData delta, int changedFields)
+                    throws RemoteException {
+                if (changedFields == 0) {
+                    // The extension's data didn't change; this only answers an update request.
+                    LOGD(TAG, "Update acknowledged by extension " + conn.componentName);
+                    onExtensionReplied();
+                    return;
+                }
+
+                ExtensionData data = applyDelta(delta, changedFields);
+                if (data == null) {
+                    return;
+                }
+
+                conn.lastPublishedData = data;
+                onUpdatePublished(data, "publishUpdateDelta(" + changedFields + ")");
+            }
+
+            @Override
+            public void publishUpdates(List<ExtensionData> deltas, int[] changedFields)
+                    throws RemoteException {
+                if (deltas == null || changedFields == null
+                        || deltas.size() != changedFields.length || deltas.isEmpty()) {
+                    LOGW(TAG, "Ignoring malformed publishUpdates from extension "
+                            + conn.componentName);
+                    return;
+                }
+
+                // Only the final state is shown, so apply all the records and publish once.
+                ExtensionData data = null;
+                for (int i = 0; i < changedFields.length; i++) {
+                    data = applyDelta(deltas.get(i), changedFields[i]);
+                    if (data == null) {
+                        return;
+                    }
+                    conn.lastPublishedData = data;
+                }
+
+                onUpdatePublished(data, "publishUpdates(" + changedFields.length + ")");
+            }
+
+            /**
+             * Applies a delta from the extension over the data it last published on this
+             * connection, returning null if the delta can't be applied.
+             */
+            private ExtensionData applyDelta(ExtensionData delta, int changedFields) {
+                if (delta == null) {
+                    delta = new ExtensionData();
+                }
+
+                ExtensionData base = conn.lastPublishedData;
+                if (base == null) {
+                    // Newer extensions may set bits for fields this host doesn't know about, so
+                    // only check for the fields it does know.
+                    if ((changedFields & ExtensionData.FIELD_ALL) != ExtensionData.FIELD_ALL) {
+                        // The extension assumes state this connection never received.
+                        LOGW(TAG, "Ignoring delta update without a prior full update from "
+                                + "extension " + conn.componentName);
+                        return null;
+                    }
+                    base = new ExtensionData();
+                }
+
+                return base.applyDelta(delta, changedFields);
+            }
+
+            private void onUpdatePublished(ExtensionData data, String method) {
+                // This is called on a binder thread. Oneway calls to a given binder are
+                // delivered in order, so numbering updates as they arrive on this connection
+                // preserves the order in which the extension sent them.
+                long sequence = conn.nextPublishSequence();
+                LOGD(TAG, method + " #" + sequence + " received for extension "
+                        + conn.componentName);
+                mExtensionManager.updateExtensionData(conn.componentName, data, sequence);
+                onExtensionReplied();
+            }
+
+            /**
+             * Records that the extension answered an update request, by publishing data or by
+             * acknowledging that its data didn't change.
+             */
+            private void onExtensionReplied() {
+                mFailureTracker.onSuccess(conn.componentName);
+                conn.lastUsedElapsed = SystemClock.elapsedRealtime();
+                conn.lastReplyElapsed = conn.lastUsedElapsed;
+                mUpdateRounds.onPublished(conn.componentName);
             }
 
             @Override
             public void addWatchContentUris(String[] contentUris) throws RemoteException {
-                if (contentUris != null && contentUris.length > 0 && conn.contentObserver != null) {
-                    ContentResolver resolver = mContext.getContentResolver();
+                if (contentUris == null || contentUris.length == 0) {
+                    return;
+                }
+
+                synchronized (conn) {
+                    if (conn.watchedContentUris == null) {
+                        // The connection was destroyed.
+                        return;
+                    }
+
                     for (String uri : contentUris) {
                         if (TextUtils.isEmpty(uri)) {
                             continue;
                         }
 
-                        resolver.registerContentObserver(Uri.parse(uri), true,
-                                conn.contentObserver);
+                        Uri parsedUri = Uri.parse(uri);
+                        if (conn.declaredWatchContentUris.contains(parsedUri)) {
+                            // Already watched on the extension's behalf, even while unbound.
+                            continue;
+                        }
+
+                        if (conn.watchedContentUris.add(parsedUri)) {
+                            mContentObservers.subscribe(parsedUri, conn.componentName);
+                        }
                     }
+                    conn.watchingContent = !conn.watchedContentUris.isEmpty();
                 }
             }
 
             @Override
             public void removeAllWatchContentUris() throws RemoteException {
-                ContentResolver resolver = mContext.getContentResolver();
-                resolver.unregisterContentObserver(conn.contentObserver);
+                unwatchAllContentUris(conn);
+
+                // The extension may now be unbound once it's idle.
+                mClientThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleIdleCheck();
+                    }
+                });
             }
 
             @Override
@@ -306,35 +935,165 @@ public class ExtensionHost {
         };
     }
 
+    /**
+     * Removes the content URI subscriptions the given connection's extension made at runtime.
+     */
+    private void unwatchAllContentUris(Connection conn) {
+        synchronized (conn) {
+            if (conn.watchedContentUris == null) {
+                return;
+            }
+
+            for (Uri uri : conn.watchedContentUris) {
+                mContentObservers.unsubscribe(uri, conn.componentName);
+            }
+            conn.watchedContentUris.clear();
+            conn.watchingContent = false;
+        }
+    }
+
+    /**
+     * Returns whether the given connection's extension was sent an operation that it hasn't
+     * answered yet, and may still be working on.
+     */
+    private static boolean isAwaitingReply(Connection conn) {
+        return conn.lastDispatchElapsed > conn.lastReplyElapsed
+                && SystemClock.elapsedRealtime() - conn.lastDispatchElapsed
+                        < UpdateRoundTracker.ROUND_DEADLINE_MILLIS;
+    }
+
+    /**
+     * Reports a failure of the given connection's extension to the failure tracker, unless one
+     * was already reported for this connection.
+     *
+     * @return Whether the extension is quarantined.
+     */
+    private boolean countFailure(Connection conn) {
+        if (!conn.failureCounted.compareAndSet(false, true)) {
+            return mFailureTracker.isQuarantined(conn.componentName);
+        }
+        return mFailureTracker.onFailure(conn.componentName);
+    }
+
+    /**
+     * Binds to the given extension again once the failure tracker allows it, unless it's been
+     * deactivated, quarantined or bound by an operation in the meantime.
+     */
+    private void scheduleReconnect(final ComponentName cn) {
+        mClientThreadHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!mActiveExtensions.contains(cn) || mExtensionConnections.containsKey(cn)
+                        || mFailureTracker.isQuarantined(cn)) {
+                    return;
+                }
+
+                long retryDelay = mFailureTracker.getRetryDelay(cn);
+                if (retryDelay > 0) {
+                    mClientThreadHandler.postDelayed(this, retryDelay);
+                    return;
+                }
+
+                Connection conn = createConnection(cn, true);
+                if (conn != null) {
+                    mExtensionConnections.put(cn, conn);
+                    enforceBoundExtensionsLimit();
+                    scheduleIdleCheck();
+                }
+            }
+        }, mFailureTracker.getRetryDelay(cn));
+    }
+
     private void destroyConnection(Connection conn) {
-        if (conn.contentObserver != null) {
-            mContext.getContentResolver().unregisterContentObserver(conn.contentObserver);
-            conn.contentObserver = null;
+        synchronized (mCollapsedOperations) {
+            Iterator<Map.Entry<Pair<ComponentName, Object>, CollapsedOperation>> it
+                    = mCollapsedOperations.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Pair<ComponentName, Object>, CollapsedOperation> entry = it.next();
+                if (conn.componentName.equals(entry.getKey().first)) {
+                    entry.getValue().scheduler.cancel();
+                    it.remove();
+                }
+            }
+        }
+
+        unwatchAllContentUris(conn);
+        synchronized (conn) {
+            conn.watchedContentUris = null;
         }
 
         conn.binder = null;
-        mContext.unbindService(conn.serviceConnection);
+        unbind(conn, conn.serviceConnection);
         conn.serviceConnection = null;
     }
 
+    /**
+     * Unbinds the given connection's extension, or detaches it from its channel service.
+     */
+    private void unbind(Connection conn, ServiceConnection serviceConnection) {
+        if (conn.channelService != null) {
+            mChannelBindings.detach(conn.channelService, conn.componentName);
+        } else {
+            mContext.unbindService(serviceConnection);
+        }
+    }
+
     private ExtensionManager.OnChangeListener mChangeListener
             = new ExtensionManager.OnChangeListener() {
         @Override
-        public void onExtensionsChanged(ComponentName sourceExtension) {
-            if (sourceExtension != null) {
-                // If the extension change is a result of a single extension, don't do anything,
-                // since we're only interested in events triggered by the system overall (e.g.
-                // extensions added or removed).
+        public void onExtensionsChanged(ExtensionManager.ChangeSet changeSet) {
+            if (!changeSet.changedExtensions.isEmpty() || changeSet.activeExtensionsChanged) {
+                mDataExpiryScheduler.update(mExtensionManager.getActiveExtensionsSnapshot());
+            }
+
+            if (!changeSet.activeExtensionsChanged) {
+                // Data or render option changes don't affect connections; we're only interested
+                // in extensions being added or removed.
                 return;
             }
+            if (!changeSet.changedListings.isEmpty()) {
+                dropOutdatedConnections(changeSet.changedListings);
+            }
             LOGD(TAG, "onExtensionsChanged; calling establishAndDestroyConnections.");
             establishAndDestroyConnections(mExtensionManager.getActiveExtensionNames());
         }
     };
 
+    /**
+     * Drops the connections and declared content URI subscriptions of the given extensions, whose
+     * listings (e.g. protocol version, channel service or declared content URIs) changed. Their
+     * URIs are subscribed to again by {@link #establishAndDestroyConnections}, and they're bound
+     * again with their new listings when they're next sent an operation.
+     */
+    private void dropOutdatedConnections(Set<ComponentName> extensions) {
+        for (ComponentName cn : extensions) {
+            List<Uri> uris = mDeclaredUriSubscriptions.remove(cn);
+            if (uris != null) {
+                for (Uri uri : uris) {
+                    mContentObservers.unsubscribe(uri, cn);
+                }
+            }
+
+            Connection conn = mExtensionConnections.remove(cn);
+            if (conn == null) {
+                continue;
+            }
+
+            LOGD(TAG, "Listing for extension " + cn + " changed; dropping its connection.");
+            boolean watchingContent = conn.watchingContent;
+            destroyConnection(conn);
+            if (watchingContent) {
+                // Let the extension register its content URI watches again.
+                scheduleReconnect(cn);
+            }
+        }
+    }
+
     private void execute(final Connection conn, final Operation operation,
             int collapseDelayMillis, final Object collapseToken) {
-        final Object collapseTokenForConn;
+        conn.lastUsedElapsed = SystemClock.elapsedRealtime();
+
+        final Pair<ComponentName, Object> collapseTokenForConn;
         if (collapseDelayMillis > 0 && collapseToken != null) {
             collapseTokenForConn = new Pair<ComponentName, Object>(conn.componentName,
                     collapseToken);
@@ -345,56 +1104,137 @@ public class ExtensionHost {
         final Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                try {
-                    if (conn.binder == null) {
-                        throw new RemoteException("Binder is unavailable.");
-                    }
-                    operation.run(conn.binder);
-                } catch (RemoteException e) {
-                    LOGE(TAG, "Couldn't execute operation; scheduling for retry upon service "
-                            + "reconnection.", e);
-                    // TODO: exponential backoff for retrying the same operation, or fail after
-                    // n attempts (in case the remote service consistently crashes when
-                    // executing this operation)
-                    synchronized (conn.deferredOps) {
-                        conn.deferredOps.add(new Pair<Object, Operation>(
-                                collapseTokenForConn, operation));
+                IExtension binder = conn.binder;
+                if (binder != null) {
+                    try {
+                        operation.run(binder);
+                        conn.lastDispatchElapsed = SystemClock.elapsedRealtime();
+                        return;
+                    } catch (RemoteException e) {
+                        // Most likely the extension's process died while handling this or an
+                        // earlier operation.
+                        if (countFailure(conn)) {
+                            LOGE(TAG, "Couldn't execute operation; extension is quarantined, "
+                                    + "dropping it.", e);
+                            return;
+                        }
+                        LOGE(TAG, "Couldn't execute operation.", e);
                     }
                 }
+
+                LOGD(TAG, "Scheduling operation for " + conn.componentName + " for retry upon "
+                        + "service reconnection.");
+                mClientThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.deferredOps.add(collapseTokenForConn, operation);
+                    }
+                });
             }
         };
 
         if (conn.ready) {
-            if (collapseTokenForConn != null) {
-                mAsyncHandler.removeCallbacksAndMessages(collapseTokenForConn);
-            }
+            // Delays are timed on the async thread; the operation itself runs on the
+            // connection's lane.
+            final Runnable dispatch = new Runnable() {
+                @Override
+                public void run() {
+                    conn.lane.execute(runnable);
+                }
+            };
 
-            if (collapseDelayMillis > 0) {
-                mAsyncHandler.postAtTime(runnable, collapseTokenForConn,
-                        SystemClock.uptimeMillis() + collapseDelayMillis);
+            if (collapseTokenForConn != null) {
+                executeCollapsed(collapseTokenForConn, dispatch, collapseDelayMillis);
+            } else if (collapseDelayMillis > 0) {
+                mAsyncHandler.postDelayed(dispatch, collapseDelayMillis);
             } else {
-                mAsyncHandler.post(runnable);
+                dispatch.run();
             }
         } else {
-            mAsyncHandler.post(new Runnable() {
+            // Deferred operations are queued and drained (in onServiceConnected) on the main
+            // thread, so that none can be queued after the queue has been drained.
+            mClientThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (conn.deferredOps) {
-                        conn.deferredOps.add(new Pair<Object, Operation>(
-                                collapseTokenForConn, operation));
+                    if (conn.ready) {
+                        execute(conn, operation, 0, null);
+                    } else {
+                        conn.deferredOps.add(collapseTokenForConn, operation);
                     }
                 }
             });
         }
     }
 
-    public void execute(ComponentName cn, Operation operation,
-                int collapseDelayMillis, final Object collapseToken) {
+    /**
+     * Runs the most recent of a burst of operations sharing the same collapse token, once the
+     * burst has been quiet for {@code quietMillis} or has lasted
+     * {@link #UPDATE_COLLAPSE_MAX_WAIT_MILLIS} (or twice the quiet period, if that's longer).
+     * Each new operation's quiet period replaces that of the previous ones.
+     */
+    private void executeCollapsed(final Pair<ComponentName, Object> collapseToken,
+            Runnable runnable, int quietMillis) {
+        synchronized (mCollapsedOperations) {
+            CollapsedOperation collapsed = mCollapsedOperations.get(collapseToken);
+            if (collapsed == null) {
+                final CollapsedOperation newCollapsed = new CollapsedOperation();
+                newCollapsed.scheduler = new CoalescingScheduler(mAsyncHandler, quietMillis,
+                        UPDATE_COLLAPSE_MAX_WAIT_MILLIS, new Runnable() {
+                    @Override
+                    public void run() {
+                        Runnable latest;
+                        synchronized (mCollapsedOperations) {
+                            latest = newCollapsed.latest;
+                            newCollapsed.latest = null;
+                        }
+                        if (latest != null) {
+                            LOGD(TAG, "Executing operation for " + collapseToken.first
+                                    + " (token " + collapseToken.second + "): "
+                                    + newCollapsed.scheduler);
+                            latest.run();
+                        }
+                    }
+                });
+                mCollapsedOperations.put(collapseToken, newCollapsed);
+                collapsed = newCollapsed;
+            }
+
+            collapsed.latest = runnable;
+            collapsed.scheduler.setWindow(quietMillis,
+                    Math.max(UPDATE_COLLAPSE_MAX_WAIT_MILLIS, 2 * quietMillis));
+            collapsed.scheduler.schedule();
+        }
+    }
+
+    public void execute(final ComponentName cn, final Operation operation,
+                final int collapseDelayMillis, final Object collapseToken) {
+        if (mFailureTracker.isQuarantined(cn)) {
+            LOGD(TAG, "Extension " + cn + " is quarantined; operation canceled.");
+            return;
+        }
+
         Connection conn = mExtensionConnections.get(cn);
         if (conn == null) {
+            long retryDelay = mFailureTracker.getRetryDelay(cn);
+            if (retryDelay > 0) {
+                // The extension failed recently; wait before binding to it again.
+                LOGD(TAG, "Extension " + cn + " failed recently; delaying operation by "
+                        + retryDelay + " ms.");
+                mClientThreadHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(cn, operation, collapseDelayMillis, collapseToken);
+                    }
+                }, retryDelay);
+                return;
+            }
+
             conn = createConnection(cn, true);
             if (conn != null) {
                 mExtensionConnections.put(cn, conn);
+                onRebound(cn);
+                enforceBoundExtensionsLimit();
+                scheduleIdleCheck();
             } else {
                 LOGE(TAG, "Couldn't connect to extension to perform operation; operation "
                         + "canceled.");
@@ -405,9 +1245,43 @@ public class ExtensionHost {
         execute(conn, operation, collapseDelayMillis, collapseToken);
     }
 
+    /**
+     * Starts a round of updates from the given extensions, keeping the device awake until they
+     * have all published data or the round's deadline passes. Call this before executing the
+     * update operations. Extensions that won't be bound for the update, because they're
+     * quarantined or failed recently, are left out of the round rather than holding it open until
+     * its deadline.
+     */
+    public void startUpdateRound(Collection<ComponentName> extensions, int reason) {
+        List<ComponentName> reachable = new ArrayList<ComponentName>();
+        for (ComponentName cn : extensions) {
+            if (mFailureTracker.isQuarantined(cn)) {
+                continue;
+            }
+
+            if (!mExtensionConnections.containsKey(cn) && mFailureTracker.getRetryDelay(cn) > 0) {
+                continue;
+            }
+
+            reachable.add(cn);
+        }
+
+        if (reachable.size() < extensions.size()) {
+            LOGD(TAG, "Leaving " + (extensions.size() - reachable.size())
+                    + " unreachable extension(s) out of update round with reason " + reason + ".");
+        }
+        mUpdateRounds.startRound(reachable, reason);
+    }
+
     private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (!ConsumerTracker.getInstance(context).hasConsumers()) {
+                ConsumerTracker.getInstance(context).onRefreshSuspended(
+                        DashClockExtension.UPDATE_REASON_SCREEN_ON);
+                return;
+            }
+
             synchronized (mExtensionsToUpdateWhenScreenOn) {
                 for (ComponentName cn : mExtensionsToUpdateWhenScreenOn) {
                     execute(cn, UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_SCREEN_ON),
@@ -427,13 +1301,14 @@ public class ExtensionHost {
         _createUpdateOperation(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED);
         _createUpdateOperation(DashClockExtension.UPDATE_REASON_SCREEN_ON);
         _createUpdateOperation(DashClockExtension.UPDATE_REASON_MANUAL);
+        _createUpdateOperation(DashClockExtension.UPDATE_REASON_EXPIRED);
     }
 
     private static void _createUpdateOperation(final int reason) {
         UPDATE_OPERATIONS.put(reason, new ExtensionHost.Operation() {
             @Override
             public void run(IExtension extension) throws RemoteException {
-                // Note that this is protected from ANRs since it runs in the AsyncHandler thread.
+                // Note that this is protected from ANRs since it runs on an operation thread.
                 // Also, since this is a 'oneway' call, when used with remote extensions, this call
                 // does not block.
                 extension.onUpdate(reason);
@@ -452,18 +1327,106 @@ public class ExtensionHost {
         void run(IExtension extension) throws RemoteException;
     }
 
+    private static class CollapsedOperation {
+        CoalescingScheduler scheduler;
+        Runnable latest;
+    }
+
     private static class Connection {
         boolean ready = false;
         ComponentName componentName;
+
+        /**
+         * Identifies this connection among all connections made by this process; newer
+         * connections have higher epochs.
+         */
+        int epoch;
+        final AtomicInteger publishCount = new AtomicInteger();
+
+        /**
+         * When an operation was last sent to or an update was last received from the extension,
+         * in {@link SystemClock#elapsedRealtime()} time.
+         */
+        volatile long lastUsedElapsed = SystemClock.elapsedRealtime();
+
+        /**
+         * When an operation was last delivered to the extension, and when the extension last
+         * answered one (by publishing or acknowledging an update), in
+         * {@link SystemClock#elapsedRealtime()} time.
+         */
+        volatile long lastDispatchElapsed;
+        volatile long lastReplyElapsed;
+
+        /**
+         * Whether a failure of the extension on this connection was already reported to the
+         * failure tracker, so that a single crash (which fails the operation in flight and then
+         * disconnects) is only counted once. Reset when the extension is connected again.
+         */
+        final AtomicBoolean failureCounted = new AtomicBoolean();
+
+        /**
+         * Whether the extension has asked to be updated on content changes. Such extensions are
+         * never unbound for being idle.
+         */
+        volatile boolean watchingContent;
+
+        /**
+         * Content URIs declared in the extension's manifest, which the host watches regardless
+         * of whether it's bound to the extension.
+         */
+        List<Uri> declaredWatchContentUris;
+
+        /**
+         * Whether the extension declares content URIs to watch, and thus only needs to be bound
+         * while it has work to do.
+         */
+        boolean lazy;
+
         ServiceConnection serviceConnection;
         IExtension binder;
         IExtensionHost hostInterface;
-        ContentObserver contentObserver;
 
         /**
-         * Only access on the async thread. The pair is (collapse token, operation)
+         * The protocol version the extension declares in its manifest.
          */
-        final Queue<Pair<Object, Operation>> deferredOps
-                = new LinkedList<Pair<Object, Operation>>();
+        int protocolVersion;
+
+        /**
+         * The channel service through which the extension is reached, or null if the host binds
+         * to the extension directly.
+         */
+        ComponentName channelService;
+
+        /**
+         * The data last published by the extension over this connection, as the base for its
+         * delta updates. Only accessed from the extension's (oneway, thus serialized) calls to
+         * {@link #hostInterface}.
+         */
+        ExtensionData lastPublishedData;
+
+        /**
+         * Content URIs the extension asked to watch at runtime, or null once the connection has
+         * been destroyed. Guarded by the connection's monitor.
+         */
+        Set<Uri> watchedContentUris;
+
+        /**
+         * Runs this connection's operations, in order.
+         */
+        SerialExecutor lane;
+
+        /**
+         * Operations waiting for the service to connect.
+         */
+        DeferredOperationQueue deferredOps;
+
+        /**
+         * Returns the sequence number for the next update published over this connection. Updates
+         * published over a newer connection to the same extension always have higher sequence
+         * numbers, so late updates from a dropped connection are recognized as stale.
+         */
+        long nextPublishSequence() {
+            return ((long) epoch << 32) | (publishCount.incrementAndGet() & 0xffffffffL);
+        }
     }
 }
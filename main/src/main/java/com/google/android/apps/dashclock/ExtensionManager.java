@@ -19,18 +19,15 @@ package com.google.android.apps.dashclock;
 import android.app.backup.BackupManager;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
-import android.os.Bundle;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
-import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 import com.google.android.apps.dashclock.gmail.GmailExtension;
 import com.google.android.apps.dashclock.nextalarm.NextAlarmExtension;
@@ -38,17 +35,18 @@ import com.google.android.apps.dashclock.weather.WeatherExtension;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
-import static com.google.android.apps.dashclock.LogUtils.LOGE;
 import static com.google.android.apps.dashclock.LogUtils.LOGW;
 
 /**
@@ -59,7 +57,6 @@ public class ExtensionManager {
     private static final String TAG = LogUtils.makeLogTag(ExtensionManager.class);
 
     private static final String PREF_ACTIVE_EXTENSIONS = "active_extensions";
-    private static final String PREF_EXTENSION_RENDER_OPTIONS = "extension_render_options";
 
     private static final Class[] DEFAULT_EXTENSIONS = {
             WeatherExtension.class,
@@ -69,14 +66,31 @@ public class ExtensionManager {
 
     private final Context mApplicationContext;
 
-    private final List<ExtensionWithData> mActiveExtensions = new ArrayList<ExtensionWithData>();
-    private Map<ComponentName, ExtensionWithData> mExtensionInfoMap
-            = new HashMap<ComponentName, ExtensionWithData>();
+    /**
+     * The current set of active extensions and their data. Replaced (never modified) on every
+     * change using compare-and-set, so it can be read and updated from any thread without
+     * locking.
+     */
+    private final AtomicReference<ActiveExtensionsSnapshot> mSnapshot
+            = new AtomicReference<ActiveExtensionsSnapshot>(ActiveExtensionsSnapshot.EMPTY);
+
     private List<OnChangeListener> mOnChangeListeners = new ArrayList<OnChangeListener>();
 
+    /**
+     * Changes that haven't been dispatched to listeners yet. Guarded by
+     * {@link #mPendingChangesLock}.
+     */
+    private Set<ComponentName> mPendingChangedExtensions = new HashSet<ComponentName>();
+    private Set<ComponentName> mPendingChangedListings = new HashSet<ComponentName>();
+    private boolean mPendingActiveExtensionsChanged;
+    private boolean mPendingRenderOptionsChanged;
+    private boolean mChangeDispatchPosted;
+    private final Object mPendingChangesLock = new Object();
+
     private SharedPreferences mDefaultPreferences;
-    private SharedPreferences mValuesPreferences;
-    private SharedPreferences mRenderOptionsPreferences;
+    private ExtensionDataStore mDataStore;
+    private ExtensionCatalog mCatalog;
+    private ExtensionFailureTracker mFailureTracker;
     private Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
     private static ExtensionManager sInstance;
@@ -92,8 +106,9 @@ public class ExtensionManager {
     private ExtensionManager(Context context) {
         mApplicationContext = context.getApplicationContext();
         mDefaultPreferences = PreferenceManager.getDefaultSharedPreferences(mApplicationContext);
-        mValuesPreferences = mApplicationContext.getSharedPreferences("extension_data", 0);
-        mRenderOptionsPreferences = mApplicationContext.getSharedPreferences(PREF_EXTENSION_RENDER_OPTIONS, 0);
+        mDataStore = new ExtensionDataStore(mApplicationContext);
+        mCatalog = new ExtensionCatalog(mApplicationContext);
+        mFailureTracker = new ExtensionFailureTracker(mApplicationContext);
         loadActiveExtensionList();
     }
 
@@ -117,14 +132,12 @@ public class ExtensionManager {
         Map<ComponentName, ExtensionRenderOptions> newRenderOptionsMap =
                 new HashMap<ComponentName, ExtensionRenderOptions>();
 
-        synchronized (mActiveExtensions) {
-            for (ExtensionWithData ewd : mActiveExtensions) {
-                if (availableExtensions.contains(ewd.listing.componentName)) {
-                    newActiveExtensions.add(ewd.listing.componentName);
-                    newRenderOptionsMap.put(ewd.listing.componentName, ewd.renderOptions);
-                } else {
-                    cleanupRequired = true;
-                }
+        for (ExtensionWithData ewd : mSnapshot.get().active) {
+            if (availableExtensions.contains(ewd.listing.componentName)) {
+                newActiveExtensions.add(ewd.listing.componentName);
+                newRenderOptionsMap.put(ewd.listing.componentName, ewd.renderOptions);
+            } else {
+                cleanupRequired = true;
             }
         }
 
@@ -155,16 +168,7 @@ public class ExtensionManager {
         // Load render options
         Map<ComponentName, ExtensionRenderOptions> activeRenderOptions = new HashMap<ComponentName, ExtensionRenderOptions>();
         for (ComponentName cn : activeExtensions) {
-            ExtensionRenderOptions renderOptions = new ExtensionRenderOptions();
-            String jsonObj = mRenderOptionsPreferences.getString(cn.flattenToString(), null);
-            if (!TextUtils.isEmpty(jsonObj)) {
-                try {
-                    renderOptions.deserialize((JSONObject) new JSONTokener(jsonObj).nextValue());
-                } catch (JSONException e) {
-                    LOGE(TAG, "Error loading extension options for " + cn + ".", e);
-                }
-            }
-            activeRenderOptions.put(cn, renderOptions);
+            activeRenderOptions.put(cn, mDataStore.loadRenderOptions(cn));
         }
 
         setActiveExtensions(activeExtensions, activeRenderOptions, false);
@@ -186,24 +190,16 @@ public class ExtensionManager {
     private void saveActiveExtensionList() {
         StringBuilder sb = new StringBuilder();
 
-        synchronized (mActiveExtensions) {
-            for (ExtensionWithData ci : mActiveExtensions) {
-                if (sb.length() > 0) {
-                    sb.append(",");
-                }
-                String cnString = ci.listing.componentName.flattenToString();
-                sb.append(cnString);
-
-                // Save render options
-                try {
-                    ExtensionRenderOptions renderOptions = ci.renderOptions;
-                    if (renderOptions != null) {
-                        String renderOptionsSerialized = renderOptions.serialize().toString();
-                        mRenderOptionsPreferences.edit().putString(cnString, renderOptionsSerialized).commit();
-                    }
-                } catch (JSONException e) {
-                    LOGE(TAG, "Error saving extension options for " + cnString + ".", e);
-                }
+        for (ExtensionWithData ci : mSnapshot.get().active) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            String cnString = ci.listing.componentName.flattenToString();
+            sb.append(cnString);
+
+            // Save render options
+            if (ci.renderOptions != null) {
+                mDataStore.putRenderOptions(ci.listing.componentName, ci.renderOptions);
             }
         }
         mDefaultPreferences.edit()
@@ -223,12 +219,7 @@ public class ExtensionManager {
     private void setActiveExtensions(List<ComponentName> extensionNames,
                                      Map<ComponentName, ExtensionRenderOptions> renderOptionsHashMap,
                                      boolean saveAndNotify) {
-        Map<ComponentName, ExtensionListing> listings = new HashMap<ComponentName, ExtensionListing>();
-        for (ExtensionListing listing : getAvailableExtensions()) {
-            listings.put(listing.componentName, listing);
-        }
-
-        List<ComponentName> activeExtensionNames = getActiveExtensionNames();
+        List<ComponentName> activeExtensionNames = mSnapshot.get().activeNames;
         //if (activeExtensionNames.equals(extensionNames)) {
         //    LOGD(TAG, "No change to list of active extensions.");
         //    return;
@@ -238,109 +229,173 @@ public class ExtensionManager {
         for (ComponentName cn : activeExtensionNames) {
             if (!extensionNames.contains(cn)) {
                 destroyExtensionData(cn);
-                destroyExtensionRenderOptions(cn);
             }
         }
 
-        // Set the new list of active extensions, loading cached data if necessary.
-        List<ExtensionWithData> newActiveExtensions = new ArrayList<ExtensionWithData>();
-
-        for (ComponentName cn : extensionNames) {
-            ExtensionWithData ewd;
-            if (mExtensionInfoMap.containsKey(cn)) {
-                ewd = mExtensionInfoMap.get(cn);
-            } else {
-                ewd = new ExtensionWithData();
-                ewd.listing = listings.get(cn);
+        // Set the new list of active extensions, loading cached data if necessary. Retry if data
+        // for an extension was published in the meantime.
+        ActiveExtensionsSnapshot currentSnapshot;
+        ActiveExtensionsSnapshot newSnapshot;
+        boolean renderOptionsChanged;
+        do {
+            renderOptionsChanged = false;
+            currentSnapshot = mSnapshot.get();
+            List<ExtensionWithData> newActiveExtensions = new ArrayList<ExtensionWithData>();
+            for (ComponentName cn : extensionNames) {
+                ExtensionWithData ewd = new ExtensionWithData();
+                ExtensionWithData existing = currentSnapshot.byName.get(cn);
+                ewd.listing = mCatalog.getListing(cn);
                 if (ewd.listing == null) {
-                    ewd.listing = new ExtensionListing();
-                    ewd.listing.componentName = cn;
+                    if (existing != null) {
+                        ewd.listing = existing.listing;
+                    } else {
+                        ewd.listing = new ExtensionListing();
+                        ewd.listing.componentName = cn;
+                    }
                 }
-                ewd.latestData = deserializeExtensionData(ewd.listing.componentName);
-            }
-            ewd.renderOptions = renderOptionsHashMap.get(cn);
-            if (ewd.renderOptions == null)
-                ewd.renderOptions = new ExtensionRenderOptions();
+                ewd.latestData = (existing != null)
+                        ? existing.latestData
+                        : deserializeExtensionData(cn);
+                ewd.sequence = (existing != null) ? existing.sequence : 0;
 
-            newActiveExtensions.add(ewd);
-        }
+                // Keep a private copy so that later changes to the caller's options don't
+                // modify the published snapshot.
+                ewd.renderOptions = new ExtensionRenderOptions();
+                ExtensionRenderOptions renderOptions = renderOptionsHashMap.get(cn);
+                if (renderOptions != null) {
+                    ewd.renderOptions.alwaysCollapsed = renderOptions.alwaysCollapsed;
+                }
+                if (existing != null
+                        && existing.renderOptions.alwaysCollapsed
+                                != ewd.renderOptions.alwaysCollapsed) {
+                    renderOptionsChanged = true;
+                }
 
-        mExtensionInfoMap.clear();
-        for (ExtensionWithData ewd : newActiveExtensions) {
-            mExtensionInfoMap.put(ewd.listing.componentName, ewd);
-        }
+                newActiveExtensions.add(ewd);
+            }
 
-        synchronized (mActiveExtensions) {
-            mActiveExtensions.clear();
-            mActiveExtensions.addAll(newActiveExtensions);
-        }
+            newSnapshot = new ActiveExtensionsSnapshot(currentSnapshot.version + 1,
+                    newActiveExtensions);
+        } while (!mSnapshot.compareAndSet(currentSnapshot, newSnapshot));
 
         if (saveAndNotify) {
-            LOGD(TAG, "List of active extensions has changed.");
             saveActiveExtensionList();
-            notifyOnChangeListeners(null);
+            boolean activeExtensionsChanged = !currentSnapshot.activeNames.equals(extensionNames);
+            if (activeExtensionsChanged || renderOptionsChanged) {
+                LOGD(TAG, "List of active extensions has changed.");
+                notifyActiveExtensionsChanged(activeExtensionsChanged, renderOptionsChanged);
+            }
         }
     }
 
     /**
-     * Updates and caches the user-visible data for a given extension.
+     * Updates and caches the user-visible data for a given extension. Safe to call concurrently
+     * from any thread (e.g. binder threads).
+     *
+     * @param sequence A number that increases monotonically with each update the extension sends
+     *                 (see {@link ExtensionHost}). Updates with a sequence number that's not
+     *                 greater than that of the last accepted update are stale, and are dropped.
+     * @return Whether or not the extension's data changed.
      */
-    public boolean updateExtensionData(ComponentName cn, ExtensionData data) {
+    public boolean updateExtensionData(ComponentName cn, ExtensionData data, long sequence) {
         data.clean();
 
-        ExtensionWithData ewd = mExtensionInfoMap.get(cn);
-        if (ewd != null && !ExtensionData.equals(ewd.latestData, data)) {
-            ewd.latestData = data;
-            serializeExtensionData(ewd.listing.componentName, data);
-            notifyOnChangeListeners(ewd.listing.componentName);
-            return true;
+        ActiveExtensionsSnapshot currentSnapshot;
+        ActiveExtensionsSnapshot newSnapshot;
+        boolean changed;
+        do {
+            currentSnapshot = mSnapshot.get();
+            ExtensionWithData ewd = currentSnapshot.byName.get(cn);
+            if (ewd == null) {
+                return false;
+            }
+
+            if (sequence <= ewd.sequence) {
+                LOGD(TAG, "Dropping stale update #" + sequence + " for extension " + cn
+                        + "; already at #" + ewd.sequence + ".");
+                return false;
+            }
+
+            // Even if the data didn't change, record the sequence number so that older updates
+            // still in flight are recognized as stale.
+            changed = !ExtensionData.equals(ewd.latestData, data);
+            ExtensionWithData newEwd = new ExtensionWithData();
+            newEwd.listing = ewd.listing;
+            newEwd.renderOptions = ewd.renderOptions;
+            newEwd.latestData = changed ? data : ewd.latestData;
+            newEwd.sequence = sequence;
+
+            List<ExtensionWithData> newActiveExtensions
+                    = new ArrayList<ExtensionWithData>(currentSnapshot.active);
+            newActiveExtensions.set(newActiveExtensions.indexOf(ewd), newEwd);
+            newSnapshot = new ActiveExtensionsSnapshot(currentSnapshot.version + 1,
+                    newActiveExtensions);
+        } while (!mSnapshot.compareAndSet(currentSnapshot, newSnapshot));
+
+        if (!changed) {
+            return false;
         }
-        return false;
+
+        serializeExtensionData(cn, data, sequence);
+        notifyExtensionDataChanged(cn);
+        return true;
     }
 
     private ExtensionData deserializeExtensionData(ComponentName componentName) {
-        ExtensionData extensionData = new ExtensionData();
-        String val = mValuesPreferences.getString(componentName.flattenToString(), "");
-        if (!TextUtils.isEmpty(val)) {
-            try {
-                extensionData.deserialize((JSONObject) new JSONTokener(val).nextValue());
-            } catch (JSONException e) {
-                LOGE(TAG, "Error loading extension data cache for " + componentName + ".",
-                        e);
-            }
-        }
-        return extensionData;
+        return mDataStore.loadData(componentName);
     }
 
-    private void serializeExtensionData(ComponentName componentName, ExtensionData extensionData) {
-        try {
-            mValuesPreferences.edit()
-                    .putString(componentName.flattenToString(),
-                            extensionData.serialize().toString())
-                    .commit();
-        } catch (JSONException e) {
-            LOGE(TAG, "Error storing extension data cache for " + componentName + ".", e);
-        }
+    private void serializeExtensionData(ComponentName componentName, ExtensionData extensionData,
+            long sequence) {
+        mDataStore.putData(componentName, extensionData, sequence);
     }
 
+    /**
+     * Removes cached data and render options for the given extension.
+     */
     private void destroyExtensionData(ComponentName componentName) {
-        mValuesPreferences.edit()
-                .remove(componentName.flattenToString())
-                .commit();
+        mDataStore.remove(componentName);
     }
 
-    private void destroyExtensionRenderOptions(ComponentName componentName) {
-        mRenderOptionsPreferences.edit()
-                                 .remove(componentName.flattenToString())
-                                 .commit();
+    /**
+     * Re-evaluates visibility after the data of the given extensions expired (see
+     * {@link ExtensionData#expiresAt()}), so that it's no longer shown, and notifies listeners
+     * that their data changed.
+     */
+    public void onExtensionDataExpired(Collection<ComponentName> expired) {
+        ActiveExtensionsSnapshot currentSnapshot;
+        ActiveExtensionsSnapshot newSnapshot;
+        do {
+            currentSnapshot = mSnapshot.get();
+            newSnapshot = new ActiveExtensionsSnapshot(currentSnapshot.version + 1,
+                    currentSnapshot.active);
+        } while (!mSnapshot.compareAndSet(currentSnapshot, newSnapshot));
+
+        for (ComponentName cn : expired) {
+            if (newSnapshot.get(cn) != null) {
+                notifyExtensionDataChanged(cn);
+            }
+        }
+    }
+
+    /**
+     * Synchronously writes any cached extension data that hasn't been persisted yet. Extension
+     * data writes are otherwise batched and deferred to a background thread.
+     */
+    public void flushExtensionData() {
+        mDataStore.flush();
+    }
+
+    /**
+     * Returns the current, immutable snapshot of active extensions and their data. Use this to
+     * read several views of the active extensions that are consistent with each other.
+     */
+    public ActiveExtensionsSnapshot getActiveExtensionsSnapshot() {
+        return mSnapshot.get();
     }
 
     public List<ExtensionWithData> getActiveExtensionsWithData() {
-        ArrayList<ExtensionWithData> activeExtensions;
-        synchronized (mActiveExtensions) {
-            activeExtensions = new ArrayList<ExtensionWithData>(mActiveExtensions);
-        }
-        return activeExtensions;
+        return mSnapshot.get().active;
     }
 
     public List<ExtensionWithData> getVisibleExtensionsWithData() {
@@ -348,76 +403,121 @@ public class ExtensionManager {
     }
 
     public List<ExtensionWithData> getVisibleExtensionsWithData(boolean removeAllwaysCollapsed) {
-        ArrayList<ExtensionWithData> visibleExtensions = new ArrayList<ExtensionWithData>();
-        synchronized (mActiveExtensions) {
-            for (ExtensionManager.ExtensionWithData ewd : mActiveExtensions) {
-                if (ewd.latestData.visible() && !(removeAllwaysCollapsed && ewd.renderOptions.alwaysCollapsed)) {
-                    visibleExtensions.add(ewd);
-                }
-            }
-        }
-        return visibleExtensions;
+        ActiveExtensionsSnapshot snapshot = mSnapshot.get();
+        return removeAllwaysCollapsed ? snapshot.visibleExpandable : snapshot.visible;
     }
 
     public List<ExtensionWithData> getAlwaysCollapsedExtensionsWithData() {
-        ArrayList<ExtensionWithData> collapsedExtensions = new ArrayList<ExtensionWithData>();
-        synchronized (mActiveExtensions) {
-            for (ExtensionManager.ExtensionWithData ewd : mActiveExtensions) {
-                if (ewd.renderOptions.alwaysCollapsed) {
-                    collapsedExtensions.add(ewd);
-                }
-            }
-        }
-        return collapsedExtensions;
+        return mSnapshot.get().alwaysCollapsed;
     }
 
+    /**
+     * Returns the (unmodifiable) list of active extension component names.
+     */
     public List<ComponentName> getActiveExtensionNames() {
-        List<ComponentName> list = new ArrayList<ComponentName>();
-        for (ExtensionWithData ci : mActiveExtensions) {
-            list.add(ci.listing.componentName);
-        }
-        return list;
+        return mSnapshot.get().activeNames;
     }
 
     public Map<ComponentName, ExtensionRenderOptions> getActiveExtensionsRenderOptions() {
         Map<ComponentName, ExtensionRenderOptions> activeRenderOptions =
                 new HashMap<ComponentName, ExtensionRenderOptions>();
-        for (ExtensionWithData ewd : mActiveExtensions) {
-            activeRenderOptions.put(ewd.listing.componentName, ewd.renderOptions);
+        for (ExtensionWithData ewd : mSnapshot.get().active) {
+            ExtensionRenderOptions renderOptions = new ExtensionRenderOptions();
+            renderOptions.alwaysCollapsed = ewd.renderOptions.alwaysCollapsed;
+            activeRenderOptions.put(ewd.listing.componentName, renderOptions);
         }
         return activeRenderOptions;
     }
 
     /**
-     * Returns a listing of all available (installed) extensions.
+     * Returns a listing of all available (installed) extensions. Listings are cached and shared,
+     * so they must not be modified.
      */
     public List<ExtensionListing> getAvailableExtensions() {
-        List<ExtensionListing> availableExtensions = new ArrayList<ExtensionListing>();
-        PackageManager pm = mApplicationContext.getPackageManager();
-        List<ResolveInfo> resolveInfos = pm.queryIntentServices(
-                new Intent(DashClockExtension.ACTION_EXTENSION), PackageManager.GET_META_DATA);
-        for (ResolveInfo resolveInfo : resolveInfos) {
-            ExtensionListing listing = new ExtensionListing();
-            listing.componentName = new ComponentName(resolveInfo.serviceInfo.packageName,
-                    resolveInfo.serviceInfo.name);
-            listing.title = resolveInfo.loadLabel(pm).toString();
-            Bundle metaData = resolveInfo.serviceInfo.metaData;
-            if (metaData != null) {
-                listing.protocolVersion = metaData.getInt("protocolVersion");
-                listing.worldReadable = metaData.getBoolean("worldReadable", false);
-                listing.description = metaData.getString("description");
-                String settingsActivity = metaData.getString("settingsActivity");
-                if (!TextUtils.isEmpty(settingsActivity)) {
-                    listing.settingsActivity = ComponentName.unflattenFromString(
-                            resolveInfo.serviceInfo.packageName + "/" + settingsActivity);
+        return mCatalog.getListings();
+    }
+
+    /**
+     * Refreshes cached extension listings for the given package, and the listings of active
+     * extensions in it, notifying listeners of the extensions whose listings were refreshed (see
+     * {@link ChangeSet#changedListings}). Should be called whenever a package is added, changed,
+     * replaced or removed.
+     */
+    public void onPackageChanged(String packageName) {
+        mCatalog.invalidatePackage(packageName);
+
+        ActiveExtensionsSnapshot currentSnapshot;
+        ActiveExtensionsSnapshot newSnapshot;
+        Set<ComponentName> changedListings;
+        do {
+            currentSnapshot = mSnapshot.get();
+            changedListings = new HashSet<ComponentName>();
+            List<ExtensionWithData> newActiveExtensions = new ArrayList<ExtensionWithData>();
+            for (ExtensionWithData ewd : currentSnapshot.active) {
+                ComponentName cn = ewd.listing.componentName;
+                ExtensionListing listing = packageName.equals(cn.getPackageName())
+                        ? mCatalog.getListing(cn) : null;
+                if (listing == null) {
+                    // Not in the package, or no longer installed (see cleanupExtensions).
+                    newActiveExtensions.add(ewd);
+                    continue;
                 }
+
+                ExtensionWithData newEwd = new ExtensionWithData();
+                newEwd.listing = listing;
+                newEwd.latestData = ewd.latestData;
+                newEwd.renderOptions = ewd.renderOptions;
+                newEwd.sequence = ewd.sequence;
+                newActiveExtensions.add(newEwd);
+                changedListings.add(cn);
+            }
+
+            if (changedListings.isEmpty()) {
+                return;
             }
 
-            listing.icon = resolveInfo.loadIcon(pm);
-            availableExtensions.add(listing);
+            newSnapshot = new ActiveExtensionsSnapshot(currentSnapshot.version + 1,
+                    newActiveExtensions);
+        } while (!mSnapshot.compareAndSet(currentSnapshot, newSnapshot));
+
+        LOGD(TAG, "Refreshed listings of active extension(s) " + changedListings + ".");
+        synchronized (mPendingChangesLock) {
+            mPendingChangedListings.addAll(changedListings);
+            mPendingActiveExtensionsChanged = true;
+            scheduleChangeDispatchLocked();
         }
+    }
 
-        return availableExtensions;
+    /**
+     * Returns whether the given extension has been quarantined after crashing repeatedly. The host
+     * doesn't bind to quarantined extensions until their package is updated.
+     */
+    public boolean isExtensionQuarantined(ComponentName componentName) {
+        return mFailureTracker.isQuarantined(componentName);
+    }
+
+    /**
+     * Lifts the quarantine for, and forgets past failures of, extensions in the given package.
+     * Should be called when a package is updated.
+     *
+     * @return Whether any extension was quarantined.
+     */
+    public boolean clearExtensionFailures(String packageName) {
+        return mFailureTracker.clearPackage(packageName);
+    }
+
+    /**
+     * Lifts the quarantine for, and forgets past failures of, the given extension. Should be
+     * called when the user asks to try the extension again.
+     *
+     * @return Whether the extension was quarantined.
+     */
+    public boolean clearExtensionFailures(ComponentName componentName) {
+        return mFailureTracker.clear(componentName);
+    }
+
+    ExtensionFailureTracker getFailureTracker() {
+        return mFailureTracker;
     }
 
     /**
@@ -435,29 +535,211 @@ public class ExtensionManager {
         mOnChangeListeners.remove(onChangeListener);
     }
 
-    private void notifyOnChangeListeners(final ComponentName sourceExtension) {
-        mMainThreadHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (OnChangeListener listener : mOnChangeListeners) {
-                    listener.onExtensionsChanged(sourceExtension);
-                }
-            }
-        });
+    private void notifyExtensionDataChanged(ComponentName cn) {
+        synchronized (mPendingChangesLock) {
+            mPendingChangedExtensions.add(cn);
+            scheduleChangeDispatchLocked();
+        }
+    }
+
+    private void notifyActiveExtensionsChanged(boolean activeExtensionsChanged,
+            boolean renderOptionsChanged) {
+        synchronized (mPendingChangesLock) {
+            mPendingActiveExtensionsChanged |= activeExtensionsChanged;
+            mPendingRenderOptionsChanged |= renderOptionsChanged;
+            scheduleChangeDispatchLocked();
+        }
+    }
+
+    private void scheduleChangeDispatchLocked() {
+        if (!mChangeDispatchPosted) {
+            mChangeDispatchPosted = true;
+            mMainThreadHandler.post(mDispatchChangesRunnable);
+        }
     }
 
+    /**
+     * Delivers all changes accumulated since the last dispatch as a single {@link ChangeSet}.
+     */
+    private Runnable mDispatchChangesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ChangeSet changeSet;
+            synchronized (mPendingChangesLock) {
+                changeSet = new ChangeSet(mPendingChangedExtensions, mPendingChangedListings,
+                        mPendingActiveExtensionsChanged, mPendingRenderOptionsChanged);
+                mPendingChangedExtensions = new HashSet<ComponentName>();
+                mPendingChangedListings = new HashSet<ComponentName>();
+                mPendingActiveExtensionsChanged = false;
+                mPendingRenderOptionsChanged = false;
+                mChangeDispatchPosted = false;
+            }
+
+            for (OnChangeListener listener : new ArrayList<OnChangeListener>(mOnChangeListeners)) {
+                listener.onExtensionsChanged(changeSet);
+            }
+        }
+    };
+
     public static interface OnChangeListener {
         /**
-         * @param sourceExtension null if not related to any specific extension (e.g. list of
-         *                        extensions has changed).
+         * Called on the main thread with all changes made since the previous call.
          */
-        void onExtensionsChanged(ComponentName sourceExtension);
+        void onExtensionsChanged(ChangeSet changeSet);
     }
 
+    /**
+     * An immutable batch of changes to the active extensions, delivered to
+     * {@link OnChangeListener}s.
+     */
+    public static class ChangeSet {
+        /**
+         * Extensions whose data changed.
+         */
+        public final Set<ComponentName> changedExtensions;
+
+        /**
+         * Active extensions whose listings were refreshed (e.g. because their package was
+         * updated), so that connections made with their previous listings are out of date.
+         */
+        public final Set<ComponentName> changedListings;
+
+        /**
+         * Whether extensions were added, removed or reordered, or their listings changed.
+         */
+        public final boolean activeExtensionsChanged;
+
+        /**
+         * Whether any active extension's render options changed.
+         */
+        public final boolean renderOptionsChanged;
+
+        ChangeSet(Set<ComponentName> changedExtensions, Set<ComponentName> changedListings,
+                boolean activeExtensionsChanged, boolean renderOptionsChanged) {
+            this.changedExtensions = Collections.unmodifiableSet(changedExtensions);
+            this.changedListings = Collections.unmodifiableSet(changedListings);
+            this.activeExtensionsChanged = activeExtensionsChanged;
+            this.renderOptionsChanged = renderOptionsChanged;
+        }
+
+        /**
+         * Returns whether only extension data (and not the list of active extensions or their
+         * render options) changed.
+         */
+        public boolean isDataOnly() {
+            return !activeExtensionsChanged && !renderOptionsChanged;
+        }
+
+        /**
+         * Returns a change set containing the changes in both this and the given change set.
+         */
+        public ChangeSet merge(ChangeSet other) {
+            Set<ComponentName> changedExtensions = new HashSet<ComponentName>(
+                    this.changedExtensions);
+            changedExtensions.addAll(other.changedExtensions);
+            Set<ComponentName> changedListings = new HashSet<ComponentName>(
+                    this.changedListings);
+            changedListings.addAll(other.changedListings);
+            return new ChangeSet(changedExtensions, changedListings,
+                    activeExtensionsChanged || other.activeExtensionsChanged,
+                    renderOptionsChanged || other.renderOptionsChanged);
+        }
+    }
+
+    /**
+     * An active extension along with its latest data. Instances that have been published in an
+     * {@link ActiveExtensionsSnapshot} must not be modified.
+     */
     public static class ExtensionWithData {
         public ExtensionListing listing;
         public ExtensionData latestData;
         public ExtensionRenderOptions renderOptions;
+
+        /**
+         * The sequence number of the last accepted update for this extension.
+         */
+        long sequence;
+    }
+
+    /**
+     * An immutable, versioned view of the active extensions, with precomputed lists for the
+     * various ways renderers consume them. A new snapshot is published whenever the list of
+     * active extensions or any extension's data changes; readers never need to lock or copy.
+     */
+    public static class ActiveExtensionsSnapshot {
+        static final ActiveExtensionsSnapshot EMPTY = new ActiveExtensionsSnapshot(0,
+                new ArrayList<ExtensionWithData>());
+
+        /**
+         * Incremented every time a new snapshot is published.
+         */
+        public final int version;
+
+        /**
+         * All active extensions, in user-specified order.
+         */
+        public final List<ExtensionWithData> active;
+
+        /**
+         * Component names of {@link #active}, in the same order.
+         */
+        public final List<ComponentName> activeNames;
+
+        /**
+         * Active extensions whose latest data is visible and hadn't expired when the snapshot was
+         * taken.
+         */
+        public final List<ExtensionWithData> visible;
+
+        /**
+         * Visible extensions that aren't set to always render collapsed.
+         */
+        public final List<ExtensionWithData> visibleExpandable;
+
+        /**
+         * Active extensions that are set to always render collapsed, visible or not.
+         */
+        public final List<ExtensionWithData> alwaysCollapsed;
+
+        final Map<ComponentName, ExtensionWithData> byName;
+
+        /**
+         * Returns the active extension with the given component name, or null if it isn't active.
+         */
+        public ExtensionWithData get(ComponentName componentName) {
+            return byName.get(componentName);
+        }
+
+        ActiveExtensionsSnapshot(int version, List<ExtensionWithData> active) {
+            List<ComponentName> activeNames = new ArrayList<ComponentName>();
+            List<ExtensionWithData> visible = new ArrayList<ExtensionWithData>();
+            List<ExtensionWithData> visibleExpandable = new ArrayList<ExtensionWithData>();
+            List<ExtensionWithData> alwaysCollapsed = new ArrayList<ExtensionWithData>();
+            Map<ComponentName, ExtensionWithData> byName
+                    = new HashMap<ComponentName, ExtensionWithData>();
+            for (ExtensionWithData ewd : active) {
+                activeNames.add(ewd.listing.componentName);
+                byName.put(ewd.listing.componentName, ewd);
+                if (ewd.latestData.visible() && !ewd.latestData.isExpired()) {
+                    visible.add(ewd);
+                    if (!ewd.renderOptions.alwaysCollapsed) {
+                        visibleExpandable.add(ewd);
+                    }
+                }
+                if (ewd.renderOptions.alwaysCollapsed) {
+                    alwaysCollapsed.add(ewd);
+                }
+            }
+
+            this.version = version;
+            this.active = Collections.unmodifiableList(
+                    new ArrayList<ExtensionWithData>(active));
+            this.activeNames = Collections.unmodifiableList(activeNames);
+            this.visible = Collections.unmodifiableList(visible);
+            this.visibleExpandable = Collections.unmodifiableList(visibleExpandable);
+            this.alwaysCollapsed = Collections.unmodifiableList(alwaysCollapsed);
+            this.byName = Collections.unmodifiableMap(byName);
+        }
     }
 
     public static class ExtensionListing {
@@ -466,8 +748,39 @@ public class ExtensionManager {
         public boolean worldReadable;
         public String title;
         public String description;
-        public Drawable icon;
         public ComponentName settingsActivity;
+
+        /**
+         * Content URIs declared in the extension's manifest; the host watches these on the
+         * extension's behalf without binding to it. Never null.
+         */
+        public List<Uri> watchContentUris = Collections.emptyList();
+
+        /**
+         * The service in the extension's package through which the host reaches this extension,
+         * shared with other extensions in the package, or null if the host binds to the
+         * extension directly.
+         */
+        public ComponentName channelService;
+
+        /**
+         * How often the extension wants periodic refreshes, or 0 for the default; see
+         * {@link ExtensionRefreshScheduler}.
+         */
+        public long refreshIntervalMillis;
+
+        ResolveInfo resolveInfo;
+        private Drawable mIcon;
+
+        /**
+         * Returns the extension's icon, loading it on first access. May return null.
+         */
+        public synchronized Drawable getIcon(Context context) {
+            if (mIcon == null && resolveInfo != null) {
+                mIcon = resolveInfo.loadIcon(context.getPackageManager());
+            }
+            return mIcon;
+        }
     }
 
     public static class ExtensionRenderOptions {
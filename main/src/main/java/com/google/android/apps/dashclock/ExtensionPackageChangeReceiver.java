@@ -28,9 +28,11 @@ import java.util.List;
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
 
 /**
- * Broadcast receiver used to watch for changes to installed packages on the device. This triggers
- * a cleanup of extensions (in case one was uninstalled), or a data update request to an extension
- * if it was updated (its package was replaced).
+ * Broadcast receiver used to watch for changes to installed packages on the device. This refreshes
+ * the cached extension listings for the affected package, and triggers a cleanup of extensions
+ * (in case one was uninstalled), or a data update request to an extension if it was updated (its
+ * package was replaced). Installing or updating a package also lifts the quarantine on its
+ * extensions (see {@link ExtensionManager#isExtensionQuarantined(ComponentName)}).
  */
 public class ExtensionPackageChangeReceiver extends WakefulBroadcastReceiver {
     private static final String TAG = LogUtils.makeLogTag(ExtensionPackageChangeReceiver.class);
@@ -38,6 +40,24 @@ public class ExtensionPackageChangeReceiver extends WakefulBroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         ExtensionManager extensionManager = ExtensionManager.getInstance(context);
+
+        // Refresh the cached extension listings for the affected package only.
+        String action = intent.getAction();
+        String packageName = (intent.getData() != null)
+                ? intent.getData().getSchemeSpecificPart() : null;
+        if (!TextUtils.isEmpty(packageName)) {
+            extensionManager.onPackageChanged(packageName);
+        }
+
+        // An update (or reinstall) may have fixed whatever made extensions in this package
+        // crash, so give them another chance. Merely enabling or disabling components doesn't.
+        if (!TextUtils.isEmpty(packageName) && (Intent.ACTION_PACKAGE_ADDED.equals(action)
+                || Intent.ACTION_PACKAGE_REPLACED.equals(action))) {
+            if (extensionManager.clearExtensionFailures(packageName)) {
+                LOGD(TAG, "Lifted quarantine for extension(s) in package " + packageName + ".");
+            }
+        }
+
         if (extensionManager.cleanupExtensions()) {
             LOGD(TAG, "Extension cleanup performed and action taken.");
 
@@ -48,10 +68,8 @@ public class ExtensionPackageChangeReceiver extends WakefulBroadcastReceiver {
 
         // If this is a replacement or change in the package, update all active extensions from
         // this package.
-        String action = intent.getAction();
         if (Intent.ACTION_PACKAGE_CHANGED.equals(action)
                 || Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
-            String packageName = intent.getData().getSchemeSpecificPart();
             if (TextUtils.isEmpty(packageName)) {
                 return;
             }
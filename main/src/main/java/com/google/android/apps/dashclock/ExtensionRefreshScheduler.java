@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.app.AlarmManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.Utils.HOURS_MILLIS;
+import static com.google.android.apps.dashclock.Utils.MINUTES_MILLIS;
+
+/**
+ * Schedules periodic extension refreshes. Each extension is refreshed at its own interval (see
+ * {@link ExtensionManager.ExtensionListing#refreshIntervalMillis}), but may be refreshed up to
+ * {@link #FLEX_FRACTION} of its interval early or late so that extensions that are due around the
+ * same time share a single wakeup. Only one alarm is ever set, for the next wakeup on the shared
+ * timeline.
+ *
+ * <p>The time of each extension's last refresh, and of recent wakeups, is kept in shared
+ * preferences, since the process may not survive between wakeups. All times are in
+ * {@link SystemClock#elapsedRealtime()}, so that changes to the wall clock don't cause bursts of
+ * refreshes or stall them; since that clock restarts when the device boots, the times are
+ * discarded after a reboot.
+ */
+class ExtensionRefreshScheduler {
+    private static final String TAG = LogUtils.makeLogTag(ExtensionRefreshScheduler.class);
+
+    private static final String PREF_NAME = "extension_refresh_schedule";
+    private static final String PREF_RECENT_WAKEUPS = "recent_wakeups";
+    private static final String PREF_BOOT_TIME = "boot_time";
+
+    /**
+     * The refresh interval for extensions that don't declare one.
+     */
+    static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 30 * MINUTES_MILLIS;
+
+    /**
+     * The shortest refresh interval an extension can declare.
+     */
+    static final long MIN_REFRESH_INTERVAL_MILLIS = 15 * MINUTES_MILLIS;
+
+    /**
+     * How early or late, as a fraction of its interval, an extension may be refreshed so that it
+     * can share a wakeup with other extensions.
+     */
+    private static final float FLEX_FRACTION = 0.25f;
+
+    private static final long DAY_MILLIS = 24 * HOURS_MILLIS;
+
+    /**
+     * How far the estimated boot time may drift (e.g. because the wall clock was adjusted) before
+     * the device is considered to have rebooted.
+     */
+    private static final long BOOT_TIME_TOLERANCE_MILLIS = 10 * MINUTES_MILLIS;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public ExtensionRefreshScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREF_NAME, 0);
+        discardTimesFromPreviousBoot();
+    }
+
+    /**
+     * Clears the stored times if they were recorded before the device last booted, since elapsed
+     * times from a previous boot are meaningless. Extensions are then considered refreshed now,
+     * and are refreshed again after their interval.
+     */
+    private void discardTimesFromPreviousBoot() {
+        long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (mPrefs.contains(PREF_BOOT_TIME) && Math.abs(
+                bootTime - mPrefs.getLong(PREF_BOOT_TIME, 0)) <= BOOT_TIME_TOLERANCE_MILLIS) {
+            return;
+        }
+
+        LOGD(TAG, "Device booted since the last refresh; starting a new refresh schedule.");
+        mPrefs.edit()
+                .clear()
+                .putLong(PREF_BOOT_TIME, bootTime)
+                .apply();
+    }
+
+    /**
+     * Records that the given extensions were just refreshed, e.g. because the user asked for all
+     * extensions to be updated.
+     */
+    public void onRefreshed(Collection<ComponentName> extensions) {
+        long now = SystemClock.elapsedRealtime();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (ComponentName cn : extensions) {
+            editor.putLong(cn.flattenToString(), now);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Records a wakeup of the periodic refresh alarm, and returns the active extensions whose
+     * refresh is due (or close enough to due to be batched with this wakeup). These are recorded
+     * as refreshed.
+     */
+    public List<ComponentName> onWakeup(List<ExtensionManager.ExtensionListing> active) {
+        long now = SystemClock.elapsedRealtime();
+        Map<ComponentName, Long> lastRefreshes = getLastRefreshes(active, now);
+        List<ComponentName> due = new ArrayList<ComponentName>();
+        for (ExtensionManager.ExtensionListing listing : active) {
+            long interval = getRefreshInterval(listing);
+            long dueAt = lastRefreshes.get(listing.componentName) + interval;
+            if (dueAt - getFlex(interval) <= now) {
+                due.add(listing.componentName);
+            }
+        }
+
+        List<Long> recentWakeups = getRecentWakeups(now);
+        recentWakeups.add(now);
+        mPrefs.edit()
+                .putString(PREF_RECENT_WAKEUPS, TextUtils.join(",", recentWakeups))
+                .apply();
+        onRefreshed(due);
+
+        LOGD(TAG, "Periodic refresh wakeup: refreshing " + due.size() + " of " + active.size()
+                + " extension(s); " + recentWakeups.size() + " wakeup(s) in the past 24 hours.");
+        return due;
+    }
+
+    /**
+     * Sets the alarm for the next wakeup on the timeline of the given active extensions, or
+     * cancels it if there are none.
+     */
+    public void schedule(List<ExtensionManager.ExtensionListing> active) {
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        if (active.isEmpty()) {
+            am.cancel(PeriodicExtensionRefreshReceiver.getPendingIntent(mContext));
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        Map<ComponentName, Long> lastRefreshes = getLastRefreshes(active, now);
+
+        // The next wakeup is the latest time at which every extension is still within its flex
+        // window, i.e. the earliest deadline.
+        long wakeup = Long.MAX_VALUE;
+        long windowLength = 0;
+        for (ExtensionManager.ExtensionListing listing : active) {
+            long interval = getRefreshInterval(listing);
+            long deadline = lastRefreshes.get(listing.componentName) + interval
+                    + getFlex(interval);
+            if (deadline < wakeup) {
+                wakeup = deadline;
+                windowLength = getFlex(interval);
+            }
+        }
+
+        wakeup = Math.max(wakeup, now);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Let the system batch the alarm with other apps' alarms too.
+            am.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeup - windowLength, windowLength,
+                    PeriodicExtensionRefreshReceiver.getPendingIntent(mContext));
+        } else {
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeup,
+                    PeriodicExtensionRefreshReceiver.getPendingIntent(mContext));
+        }
+
+        LOGD(TAG, "Next periodic refresh wakeup in " + (wakeup - now) / MINUTES_MILLIS
+                + " minute(s); " + countPlannedWakeups(active, lastRefreshes, now)
+                + " wakeup(s) planned in the next 24 hours for " + active.size()
+                + " extension(s), " + getRecentWakeups(now).size()
+                + " wakeup(s) in the past 24 hours.");
+    }
+
+    /**
+     * Returns the number of wakeups the timeline of the given extensions needs over the next day,
+     * assuming each wakeup refreshes every extension within its flex window.
+     */
+    private static int countPlannedWakeups(List<ExtensionManager.ExtensionListing> active,
+            Map<ComponentName, Long> lastRefreshes, long now) {
+        Map<ComponentName, Long> simulated = new HashMap<ComponentName, Long>(lastRefreshes);
+        int wakeups = 0;
+        while (true) {
+            long wakeup = Long.MAX_VALUE;
+            for (ExtensionManager.ExtensionListing listing : active) {
+                long interval = getRefreshInterval(listing);
+                wakeup = Math.min(wakeup,
+                        simulated.get(listing.componentName) + interval + getFlex(interval));
+            }
+
+            if (wakeup > now + DAY_MILLIS) {
+                return wakeups;
+            }
+
+            ++wakeups;
+            for (ExtensionManager.ExtensionListing listing : active) {
+                long interval = getRefreshInterval(listing);
+                if (simulated.get(listing.componentName) + interval - getFlex(interval)
+                        <= wakeup) {
+                    simulated.put(listing.componentName, Math.max(wakeup, now));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time of the last refresh of each of the given extensions. Extensions that were
+     * never refreshed are considered refreshed now, since they're updated when first connected.
+     */
+    private Map<ComponentName, Long> getLastRefreshes(
+            List<ExtensionManager.ExtensionListing> active, long now) {
+        Map<ComponentName, Long> lastRefreshes = new HashMap<ComponentName, Long>();
+        List<ComponentName> neverRefreshed = new ArrayList<ComponentName>();
+        for (ExtensionManager.ExtensionListing listing : active) {
+            String key = listing.componentName.flattenToString();
+            if (!mPrefs.contains(key)) {
+                neverRefreshed.add(listing.componentName);
+            }
+            // Guard against times from a previous boot that weren't discarded.
+            lastRefreshes.put(listing.componentName, Math.min(now, mPrefs.getLong(key, now)));
+        }
+
+        if (!neverRefreshed.isEmpty()) {
+            onRefreshed(neverRefreshed);
+        }
+        return lastRefreshes;
+    }
+
+    private List<Long> getRecentWakeups(long now) {
+        List<Long> wakeups = new ArrayList<Long>();
+        String value = mPrefs.getString(PREF_RECENT_WAKEUPS, "");
+        if (TextUtils.isEmpty(value)) {
+            return wakeups;
+        }
+
+        for (String wakeup : value.split(",")) {
+            try {
+                long time = Long.parseLong(wakeup);
+                if (time > now - DAY_MILLIS && time <= now) {
+                    wakeups.add(time);
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return wakeups;
+    }
+
+    private static long getRefreshInterval(ExtensionManager.ExtensionListing listing) {
+        if (listing.refreshIntervalMillis <= 0) {
+            return DEFAULT_REFRESH_INTERVAL_MILLIS;
+        }
+        return Math.max(MIN_REFRESH_INTERVAL_MILLIS, listing.refreshIntervalMillis);
+    }
+
+    private static long getFlex(long interval) {
+        return (long) (interval * FLEX_FRACTION);
+    }
+}
@@ -16,22 +16,21 @@
 
 package com.google.android.apps.dashclock;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.os.SystemClock;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
 import com.google.android.apps.dashclock.api.DashClockExtension;
 
 import static com.google.android.apps.dashclock.LogUtils.LOGD;
-import static com.google.android.apps.dashclock.Utils.MINUTES_MILLIS;
 
 /**
  * A broadcast receiver in charge of scheduling DashClock extension refreshes. This was
  * originally handled by updatePeriodMillis but custom refresh behavior and a separation of
- * extension refreshes from widget refreshes was desirable so was moved here.
+ * extension refreshes from widget refreshes was desirable so was moved here. The alarm itself is
+ * set by {@link ExtensionRefreshScheduler}, and {@link DashClockService} only refreshes the
+ * extensions that are due when it goes off.
  */
 public class PeriodicExtensionRefreshReceiver extends WakefulBroadcastReceiver {
     private static final String TAG = LogUtils.makeLogTag(PeriodicExtensionRefreshReceiver.class);
@@ -45,7 +44,7 @@ public class PeriodicExtensionRefreshReceiver extends WakefulBroadcastReceiver {
             return;
         }
 
-        // Periodic alarm has triggered. Update all extensions.
+        // Periodic alarm has triggered. Update the extensions that are due.
         startWakefulService(context,
                 getUpdateAllExtensionsIntent(context, DashClockExtension.UPDATE_REASON_PERIODIC));
     }
@@ -58,28 +57,24 @@ public class PeriodicExtensionRefreshReceiver extends WakefulBroadcastReceiver {
     }
 
     /**
-     * Sets the refresh schedule if one isn't set already.
+     * Returns the pending intent for the periodic refresh alarm.
+     */
+    static PendingIntent getPendingIntent(Context context) {
+        return PendingIntent.getBroadcast(context, 0,
+                new Intent(context, PeriodicExtensionRefreshReceiver.class)
+                        .setAction(ACTION_PERIODIC_ALARM),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Updates all extensions now. This also (re)schedules periodic refreshes, which replaces the
+     * fixed 30-minute repeating alarm used by older versions.
      */
     public static void updateExtensionsAndEnsurePeriodicRefresh(final Context context) {
         LOGD(TAG, "updateExtensionsAndEnsurePeriodicRefresh");
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 
         // Update all extensions now.
         context.startService(getUpdateAllExtensionsIntent(context,
                 DashClockExtension.UPDATE_REASON_MANUAL));
-
-        // Schedule an alarm for every 30 minutes; it will not wake up the device;
-        // it will be handled only once the device is awake. The first time that this
-        // alarm can go off is in 15 minutes, and the latest time it will go off is
-        // 45 minutes from now.
-        PendingIntent pi = PendingIntent.getBroadcast(context, 0,
-                new Intent(context, PeriodicExtensionRefreshReceiver.class)
-                        .setAction(ACTION_PERIODIC_ALARM),
-                PendingIntent.FLAG_UPDATE_CURRENT);
-        am.cancel(pi);
-        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + 15 * MINUTES_MILLIS,
-                AlarmManager.INTERVAL_HALF_HOUR,
-                pi);
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.os.SystemClock;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+
+/**
+ * An {@link Executor} that runs tasks one at a time, in submission order, on a shared (and
+ * possibly concurrent) executor. Several serial executors sharing a pool run concurrently with
+ * each other, while each one preserves the ordering of its own tasks.
+ */
+class SerialExecutor implements Executor {
+    private static final String TAG = LogUtils.makeLogTag(SerialExecutor.class);
+
+    /**
+     * Tasks that waited longer than this to start are logged.
+     */
+    private static final long SLOW_START_MILLIS = 1000;
+
+    private final String mName;
+    private final Executor mPool;
+
+    // Guarded by this object's monitor.
+    private final Queue<Runnable> mTasks = new LinkedList<Runnable>();
+    private boolean mActive;
+
+    /**
+     * @param name A name for this executor, used in log messages.
+     * @param pool The executor that runs the tasks.
+     */
+    public SerialExecutor(String name, Executor pool) {
+        mName = name;
+        mPool = pool;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable task) {
+        final long enqueuedUptime = SystemClock.uptimeMillis();
+        mTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                long waitMillis = SystemClock.uptimeMillis() - enqueuedUptime;
+                if (waitMillis > SLOW_START_MILLIS) {
+                    LOGD(TAG, "Task for " + mName + " waited " + waitMillis + " ms to start.");
+                }
+
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+
+        if (!mActive) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Returns whether no task is running or waiting to run.
+     */
+    public synchronized boolean isIdle() {
+        return !mActive && mTasks.isEmpty();
+    }
+
+    private synchronized void scheduleNext() {
+        Runnable next = mTasks.poll();
+        mActive = (next != null);
+        if (next == null) {
+            return;
+        }
+
+        try {
+            mPool.execute(next);
+        } catch (RejectedExecutionException e) {
+            // The pool was shut down.
+            LOGW(TAG, "Dropping " + (mTasks.size() + 1) + " task(s) for " + mName + ".");
+            mTasks.clear();
+            mActive = false;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.android.apps.dashclock.LogUtils.LOGD;
+import static com.google.android.apps.dashclock.LogUtils.LOGW;
+import static com.google.android.apps.dashclock.Utils.SECONDS_MILLIS;
+
+/**
+ * Keeps the device awake for the duration of update rounds. A round starts when updates are
+ * requested from a set of extensions, and ends once all of them have published data, or when
+ * {@link #ROUND_DEADLINE_MILLIS} has passed. A partial wake lock is held for the whole round, so
+ * that the device doesn't fall asleep between requesting updates and receiving them.
+ *
+ * <p>All methods are thread-safe.
+ */
+class UpdateRoundTracker {
+    private static final String TAG = LogUtils.makeLogTag(UpdateRoundTracker.class);
+
+    /**
+     * The longest a round can keep the device awake.
+     */
+    static final long ROUND_DEADLINE_MILLIS = 30 * SECONDS_MILLIS;
+
+    private final PowerManager mPowerManager;
+    private final Handler mHandler = new Handler();
+
+    // Guarded by this object's monitor.
+    private final List<Round> mRounds = new ArrayList<Round>();
+    private int mTimedOutCount;
+
+    public UpdateRoundTracker(Context context) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Starts a round of updates from the given extensions, keeping the device awake until they
+     * have all published data. Must be called before the updates are requested.
+     */
+    public synchronized void startRound(Collection<ComponentName> extensions, int reason) {
+        if (extensions.isEmpty()) {
+            return;
+        }
+
+        Round round = new Round(extensions, reason);
+        // Not reference counted, so that releasing the lock after its timeout is harmless.
+        round.wakeLock.setReferenceCounted(false);
+        round.wakeLock.acquire(ROUND_DEADLINE_MILLIS);
+        mRounds.add(round);
+        mHandler.postDelayed(round, ROUND_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Records that the given extension published data, completing any rounds that were only
+     * waiting for it.
+     */
+    public synchronized void onPublished(ComponentName cn) {
+        for (int i = mRounds.size() - 1; i >= 0; i--) {
+            Round round = mRounds.get(i);
+            if (round.pending.remove(cn) && round.pending.isEmpty()) {
+                finishRoundLocked(round);
+            }
+        }
+    }
+
+    /**
+     * Ends all rounds, letting the device sleep.
+     */
+    public synchronized void destroy() {
+        while (!mRounds.isEmpty()) {
+            finishRoundLocked(mRounds.get(mRounds.size() - 1));
+        }
+    }
+
+    private void finishRoundLocked(Round round) {
+        mRounds.remove(round);
+        mHandler.removeCallbacks(round);
+        round.wakeLock.release();
+
+        long duration = SystemClock.elapsedRealtime() - round.startElapsed;
+        if (round.pending.isEmpty()) {
+            LOGD(TAG, "Update round with reason " + round.reason + " completed in " + duration
+                    + " ms for " + round.extensionCount + " extension(s).");
+        } else {
+            mTimedOutCount += round.pending.size();
+            LOGW(TAG, "Update round with reason " + round.reason + " ended after " + duration
+                    + " ms; " + round.pending.size() + " of " + round.extensionCount
+                    + " extension(s) didn't publish (" + mTimedOutCount + " in total): "
+                    + round.pending);
+        }
+    }
+
+    private class Round implements Runnable {
+        final Set<ComponentName> pending;
+        final int extensionCount;
+        final int reason;
+        final long startElapsed = SystemClock.elapsedRealtime();
+        final PowerManager.WakeLock wakeLock
+                = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+
+        Round(Collection<ComponentName> extensions, int reason) {
+            this.pending = new HashSet<ComponentName>(extensions);
+            this.extensionCount = pending.size();
+            this.reason = reason;
+        }
+
+        /**
+         * Called when the round's deadline passes.
+         */
+        @Override
+        public void run() {
+            synchronized (UpdateRoundTracker.this) {
+                if (mRounds.contains(this)) {
+                    finishRoundLocked(this);
+                }
+            }
+        }
+    }
+}
@@ -117,6 +117,11 @@ public class CalendarExtension extends DashClockExtension {
         return selectedCalendars;
     }
 
+    @Override
+    protected boolean useSharedWorkerThread() {
+        return true;
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -31,6 +31,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Vibrator;
@@ -50,6 +51,7 @@ import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 
+import com.google.android.apps.dashclock.DashClockService;
 import com.google.android.apps.dashclock.ExtensionHost;
 import com.google.android.apps.dashclock.ExtensionManager;
 import com.google.android.apps.dashclock.LogUtils;
@@ -72,6 +74,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -105,11 +108,27 @@ public class ConfigureExtensionsFragment extends Fragment implements
     private Map<ComponentName, ExtensionManager.ExtensionListing> mExtensionListings
             = new HashMap<ComponentName, ExtensionManager.ExtensionListing>();
     private List<ComponentName> mAvailableExtensions = new ArrayList<ComponentName>();
+
+    /**
+     * Flattened extension icons, loaded lazily as list items are shown.
+     */
+    private Map<ComponentName, Drawable> mExtensionIcons = new HashMap<ComponentName, Drawable>();
     private PopupMenu mAddExtensionPopupMenu;
 
     private BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            String packageName = (intent.getData() != null)
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            if (!TextUtils.isEmpty(packageName)) {
+                mExtensionManager.onPackageChanged(packageName);
+                Iterator<ComponentName> it = mExtensionIcons.keySet().iterator();
+                while (it.hasNext()) {
+                    if (packageName.equals(it.next().getPackageName())) {
+                        it.remove();
+                    }
+                }
+            }
             repopulateAvailableExtensions();
         }
     };
@@ -130,7 +149,8 @@ public class ConfigureExtensionsFragment extends Fragment implements
         mExtensionManager.addOnChangeListener(this);
 
         if (savedInstanceState == null) {
-            mSelectedExtensions = mExtensionManager.getActiveExtensionNames();
+            mSelectedExtensions = new ArrayList<ComponentName>(
+                    mExtensionManager.getActiveExtensionNames());
             mSelectedExtensionsRenderOptions = mExtensionManager.getActiveExtensionsRenderOptions();
         } else {
             List<String> selected = savedInstanceState
@@ -284,28 +304,12 @@ public class ConfigureExtensionsFragment extends Fragment implements
         selectedExtensions.addAll(mSelectedExtensions);
         boolean selectedExtensionsDirty = false;
 
-        for (ExtensionListing listing : mExtensionListings.values()) {
-            if (listing.icon != null) {
-                //listing.icon.recycle();
-                // TODO: recycling causes crashes with the ListView :-(
-                listing.icon = null;
-            }
-        }
-
         mExtensionListings.clear();
         mAvailableExtensions.clear();
 
-        Resources res = getResources();
-
         for (ExtensionListing listing : mExtensionManager.getAvailableExtensions()) {
             mExtensionListings.put(listing.componentName, listing);
 
-            if (listing.icon != null) {
-                Bitmap icon = Utils.flattenExtensionIcon(listing.icon,
-                        res.getColor(R.color.extension_list_item_color));
-                listing.icon = (icon != null) ? new BitmapDrawable(res, icon) : null;
-            }
-
             if (selectedExtensions.contains(listing.componentName)) {
                 if (!ExtensionHost.supportsProtocolVersion(listing.protocolVersion)) {
                     // If the extension is selected and its protocol isn't supported,
@@ -341,6 +345,23 @@ public class ConfigureExtensionsFragment extends Fragment implements
         }
     }
 
+    private Drawable getExtensionIcon(ExtensionListing listing) {
+        if (mExtensionIcons.containsKey(listing.componentName)) {
+            return mExtensionIcons.get(listing.componentName);
+        }
+
+        Resources res = getResources();
+        Drawable icon = null;
+        Drawable rawIcon = listing.getIcon(getActivity());
+        if (rawIcon != null) {
+            Bitmap flattenedIcon = Utils.flattenExtensionIcon(rawIcon,
+                    res.getColor(R.color.extension_list_item_color));
+            icon = (flattenedIcon != null) ? new BitmapDrawable(res, flattenedIcon) : null;
+        }
+        mExtensionIcons.put(listing.componentName, icon);
+        return icon;
+    }
+
     @Override
     public void onItemClick(AdapterView<?> listView, View view, int position, long id) {
         if (id == -1) {
@@ -479,8 +500,10 @@ public class ConfigureExtensionsFragment extends Fragment implements
     }
 
     @Override
-    public void onExtensionsChanged(ComponentName sourceExtension) {
-        repopulateAvailableExtensions();
+    public void onExtensionsChanged(ExtensionManager.ChangeSet changeSet) {
+        if (changeSet.activeExtensionsChanged) {
+            repopulateAvailableExtensions();
+        }
     }
 
     private void showRemoveUndoBar(int[] reverseSortedPositions) {
@@ -633,11 +656,16 @@ public class ConfigureExtensionsFragment extends Fragment implements
                         descriptionView.setVisibility(View.GONE);
                         overflowButton.setVisibility(View.GONE);
                     } else {
-                        iconView.setImageDrawable(listing.icon);
+                        iconView.setImageDrawable(getExtensionIcon(listing));
                         titleView.setText(listing.title);
-                        descriptionView.setVisibility(
-                                TextUtils.isEmpty(listing.description) ? View.GONE : View.VISIBLE);
-                        descriptionView.setText(listing.description);
+                        if (mExtensionManager.isExtensionQuarantined(cn)) {
+                            descriptionView.setVisibility(View.VISIBLE);
+                            descriptionView.setText(R.string.extension_quarantined);
+                        } else {
+                            descriptionView.setVisibility(TextUtils.isEmpty(listing.description)
+                                    ? View.GONE : View.VISIBLE);
+                            descriptionView.setText(listing.description);
+                        }
                         overflowButton.setVisibility(View.VISIBLE);
                         overflowButton.setOnClickListener(new View.OnClickListener() {
                             @Override
@@ -648,6 +676,8 @@ public class ConfigureExtensionsFragment extends Fragment implements
                                 if (listing.settingsActivity == null) {
                                     menu.getMenu().findItem(R.id.action_settings).setVisible(false);
                                 }
+                                menu.getMenu().findItem(R.id.action_retry).setVisible(
+                                        mExtensionManager.isExtensionQuarantined(cn));
                                 menu.setOnMenuItemClickListener(
                                         new OverflowItemClickListener(position));
                                 menu.show();
@@ -718,6 +748,24 @@ public class ConfigureExtensionsFragment extends Fragment implements
                             // TODO: show error to user
                         }
                         return true;
+
+                    case R.id.action_retry:
+                        ComponentName retryCn = (ComponentName) getItem(mPosition);
+                        if (mExtensionManager.clearExtensionFailures(retryCn)) {
+                            LOGD(TAG, "Retrying quarantined extension " + retryCn + ".");
+                        }
+
+                        // Binds to the extension again.
+                        Intent updateExtensionIntent = new Intent(getActivity(),
+                                DashClockService.class);
+                        updateExtensionIntent.setAction(DashClockService.ACTION_UPDATE_EXTENSIONS);
+                        updateExtensionIntent.putExtra(DashClockService.EXTRA_COMPONENT_NAME,
+                                retryCn.flattenToShortString());
+                        updateExtensionIntent.putExtra(DashClockService.EXTRA_UPDATE_REASON,
+                                DashClockExtension.UPDATE_REASON_MANUAL);
+                        getActivity().startService(updateExtensionIntent);
+                        notifyDataSetChanged();
+                        return true;
                 }
                 return false;
             }
@@ -78,6 +78,11 @@ public class GmailExtension extends DashClockExtension {
         return sp.getStringSet(PREF_ACCOUNTS, allAccountsSet);
     }
 
+    @Override
+    protected boolean useSharedWorkerThread() {
+        return true;
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -44,6 +44,11 @@ public class NextAlarmExtension extends DashClockExtension {
 
     private static Pattern sDigitPattern = Pattern.compile("\\s[0-9]");
 
+    @Override
+    protected boolean useSharedWorkerThread() {
+        return true;
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
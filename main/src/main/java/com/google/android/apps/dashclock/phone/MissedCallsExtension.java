@@ -38,6 +38,11 @@ import static com.google.android.apps.dashclock.LogUtils.LOGE;
 public class MissedCallsExtension extends DashClockExtension {
     private static final String TAG = LogUtils.makeLogTag(MissedCallsExtension.class);
 
+    @Override
+    protected boolean useSharedWorkerThread() {
+        return true;
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
@@ -45,6 +45,11 @@ import static com.google.android.apps.dashclock.LogUtils.LOGW;
 public class SmsExtension extends DashClockExtension {
     private static final String TAG = LogUtils.makeLogTag(SmsExtension.class);
 
+    @Override
+    protected boolean useSharedWorkerThread() {
+        return true;
+    }
+
     @Override
     protected void onInitialize(boolean isReconnect) {
         super.onInitialize(isReconnect);
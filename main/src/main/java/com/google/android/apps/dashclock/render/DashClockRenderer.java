@@ -74,7 +74,9 @@ public abstract class DashClockRenderer {
         Resources res = mContext.getResources();
 
         // Load data from extensions
-        List<ExtensionWithData> activeExtensions = mExtensionManager.getActiveExtensionsWithData();
+        ExtensionManager.ActiveExtensionsSnapshot snapshot
+                = mExtensionManager.getActiveExtensionsSnapshot();
+        List<ExtensionWithData> activeExtensions = snapshot.active;
 
         // Determine if we're on a tablet or not (lock screen widgets can't be collapsed on
         // tablets).
@@ -190,7 +192,7 @@ public abstract class DashClockRenderer {
         }
 
         // Step 6. Render the extensions (collapsed or expanded)
-        List<ExtensionWithData> alwaysCollapsedExtensions = mExtensionManager.getAlwaysCollapsedExtensionsWithData();
+        List<ExtensionWithData> alwaysCollapsedExtensions = snapshot.alwaysCollapsed;
         List<ExtensionWithData> collapsedExtensions = (!isExpanded) ?
                 activeExtensions : alwaysCollapsedExtensions;
         if (!isExpanded || (alwaysCollapsedExtensions.size() > 0)) {
@@ -202,7 +204,7 @@ public abstract class DashClockRenderer {
             boolean ellipsisVisible = false;
             int slotIndex = 0;
             for (ExtensionWithData ewd : collapsedExtensions) {
-                if (!ewd.latestData.visible()) {
+                if (!ewd.latestData.visible() || ewd.latestData.isExpired()) {
                     continue;
                 }
 